@@ -0,0 +1,68 @@
+package com.thinkminimo.golf;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Notices when anything in an app directory is added, removed or changed,
+ * by comparing the name, size and modification time of every file from
+ * one poll to the next.
+ */
+public class AppWatcher {
+
+  private final File            mRoot;
+  private final HashSet<String> mIgnore;
+  private long                  mLast   = 0L;
+  private boolean               mFirst  = true;
+
+  /**
+   * Constructor.
+   *
+   * @param       root        the directory to watch
+   * @param       ignore      names of files in the root directory to leave
+   *                          out (ones generated from the others); names
+   *                          starting with '.' are always left out
+   */
+  public AppWatcher(File root, List<String> ignore) {
+    mRoot   = root;
+    mIgnore = new HashSet<String>(ignore);
+  }
+
+  /**
+   * Look for changes.
+   *
+   * @return                  true if something changed since the last
+   *                          poll; the first poll never reports a change
+   */
+  public synchronized boolean poll() {
+    long    fp      = fingerprint(mRoot, "", 17L);
+    boolean changed = !mFirst && fp != mLast;
+
+    mFirst  = false;
+    mLast   = fp;
+    return changed;
+  }
+
+  private long fingerprint(File file, String path, long fp) {
+    fp = fp * 31L + path.hashCode();
+
+    if (file.isDirectory()) {
+      String[] list = file.list();
+      if (list == null)
+        return fp;
+      Arrays.sort(list);
+      for (String f : list) {
+        if (f.startsWith(".") || (path.length() == 0 && mIgnore.contains(f)))
+          continue;
+        fp = fingerprint(new File(file, f), path + "/" + f, fp);
+      }
+    } else {
+      fp = fp * 31L + file.length();
+      fp = fp * 31L + file.lastModified();
+    }
+
+    return fp;
+  }
+}
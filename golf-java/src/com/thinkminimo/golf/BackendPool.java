@@ -0,0 +1,347 @@
+package com.thinkminimo.golf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.methods.GetMethod;
+
+/**
+ * A set of interchangeable backend servers to spread proxy requests over.
+ * Backends are picked by weighted round-robin or by fewest outstanding
+ * requests per unit of weight.
+ *
+ * A backend that fails a number of requests in a row is ejected for a
+ * while and then given another chance. If health probes are running, a
+ * backend that fails its probe is out until it passes one again. When
+ * every backend is out, requests go to them anyway rather than nowhere.
+ *
+ * Each backend takes only so many requests at once, so that a slow one
+ * can't tie up every request; a request waits for a backend with room.
+ */
+public class BackendPool {
+
+  public static final String ROUND_ROBIN        = "roundRobin";
+  public static final String LEAST_OUTSTANDING  = "leastOutstanding";
+
+  /**
+   * A backend server.
+   */
+  public static class Backend {
+    private final String  mHost;
+    private final int     mPort;
+    private final int     mWeight;
+    private int           mOutstanding    = 0;
+    private int           mFailures       = 0;
+    private long          mEjectedUntil   = 0;
+    private boolean       mProbeFailed    = false;
+    private int           mCurrentWeight  = 0;
+
+    public Backend(String host, int port, int weight) {
+      if (weight < 1)
+        throw new IllegalArgumentException("bad weight for " + host + ": " +
+            weight);
+      mHost   = host;
+      mPort   = port;
+      mWeight = weight;
+    }
+
+    public String getHost()   { return mHost;   }
+    public int    getPort()   { return mPort;   }
+    public int    getWeight() { return mWeight; }
+
+    /**
+     * @return the host, with the port unless it's 80
+     */
+    public String getHostAndPort() {
+      return (mPort == 80 ? mHost : mHost + ":" + mPort);
+    }
+
+    public String toString() {
+      return getHostAndPort();
+    }
+
+    private boolean isUp(long now) {
+      return !mProbeFailed && mEjectedUntil <= now;
+    }
+  }
+
+  private final Backend[] mBackends;
+  private final boolean   mRoundRobin;
+  private final int       mMaxFails;
+  private final long      mEjectTime;
+  private final int       mMaxOutstanding;
+  private int             mNext           = 0;
+  private Thread          mProbeThread    = null;
+
+  /**
+   * Constructor.
+   *
+   * @param       backends    the backends, at least one
+   * @param       policy      ROUND_ROBIN or LEAST_OUTSTANDING
+   * @param       maxFails    how many failures in a row eject a backend
+   * @param       ejectTime   how long an ejected backend is out (msec)
+   * @param       maxOutstanding
+   *                          how many requests a backend takes at once, or
+   *                          0 for no limit
+   */
+  public BackendPool(List<Backend> backends, String policy, int maxFails,
+      long ejectTime, int maxOutstanding) {
+    if (backends.isEmpty())
+      throw new IllegalArgumentException("no backends");
+    if (!ROUND_ROBIN.equals(policy) && !LEAST_OUTSTANDING.equals(policy))
+      throw new IllegalArgumentException("unknown policy: " + policy);
+
+    mBackends   = backends.toArray(new Backend[backends.size()]);
+    mRoundRobin = ROUND_ROBIN.equals(policy);
+    mMaxFails   = maxFails;
+    mEjectTime  = ejectTime;
+    mMaxOutstanding = maxOutstanding;
+  }
+
+  /**
+   * Parse a list of backends like "host1:8080*3, host2:8080", where the
+   * port and the weight (after the '*') are optional.
+   *
+   * @param       spec        the list, separated by commas or whitespace
+   * @param       defaultPort the port for backends that don't give one
+   * @return                  the backends
+   */
+  public static List<Backend> parse(String spec, int defaultPort) {
+    List<Backend> result = new ArrayList<Backend>();
+
+    for (String item : spec.trim().split("[,\\s]+")) {
+      if (item.length() == 0)
+        continue;
+
+      int weight = 1;
+      int port   = defaultPort;
+      int star   = item.indexOf('*');
+      try {
+        if (star != -1) {
+          weight  = Integer.parseInt(item.substring(star + 1));
+          item    = item.substring(0, star);
+        }
+        int colon = item.indexOf(':');
+        if (colon != -1) {
+          port    = Integer.parseInt(item.substring(colon + 1));
+          item    = item.substring(0, colon);
+        }
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("bad backend: " + item);
+      }
+
+      result.add(new Backend(item, port, weight));
+    }
+
+    return result;
+  }
+
+  /**
+   * @return the backends
+   */
+  public Backend[] getBackends() {
+    return mBackends.clone();
+  }
+
+  /**
+   * Pick a backend for a request and count the request against it,
+   * waiting for one to have room if need be. The request must be handed
+   * back with release() or cancel().
+   *
+   * @param       exclude     a backend not to pick if there's another
+   *                          one (the one that just failed), or null
+   * @param       timeout     how long to wait for room (msec)
+   * @return                  the backend, or null if none had room in time
+   */
+  public synchronized Backend acquire(Backend exclude, long timeout) {
+    long deadline = System.currentTimeMillis() + timeout;
+
+    for (;;) {
+      long    now   = System.currentTimeMillis();
+      Backend best  = pick(now, exclude, true);
+
+      // everything's out: better to try one than to fail for sure
+      if (best == null && !anyUp(now, exclude)) {
+        best = pick(now, exclude, false);
+        if (best == null && exclude != null && hasRoom(exclude))
+          best = exclude;
+      }
+
+      if (best != null) {
+        best.mOutstanding++;
+        return best;
+      }
+
+      if (now >= deadline)
+        return null;
+      try {
+        wait(deadline - now);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Hand back a request, saying how it went.
+   *
+   * @param       backend     the backend from acquire()
+   * @param       ok          false if the backend failed the request
+   */
+  public synchronized void release(Backend backend, boolean ok) {
+    backend.mOutstanding--;
+    notifyAll();
+
+    if (ok) {
+      backend.mFailures     = 0;
+      backend.mEjectedUntil = 0;
+    } else if (++backend.mFailures >= mMaxFails) {
+      backend.mEjectedUntil = System.currentTimeMillis() + mEjectTime;
+    }
+  }
+
+  /**
+   * Hand back a request that went wrong through no fault of the backend,
+   * such as one whose client went away, without counting it either way.
+   *
+   * @param       backend     the backend from acquire()
+   */
+  public synchronized void cancel(Backend backend) {
+    backend.mOutstanding--;
+    notifyAll();
+  }
+
+  /**
+   * Start probing every backend in the background. A backend that doesn't
+   * answer the probe with a 2xx or 3xx status is out until it does.
+   *
+   * @param       client      the client to send the probes with
+   * @param       path        the path to GET on each backend
+   * @param       interval    the time between rounds of probes (msec)
+   * @param       timeout     how long to wait for a probe's answer (msec)
+   */
+  public synchronized void startProbes(final HttpClient client,
+      final String path, final long interval, final int timeout) {
+    if (mProbeThread != null)
+      return;
+
+    mProbeThread = new Thread("golf-proxy-health") {
+      public void run() {
+        while (!isInterrupted()) {
+          for (Backend backend : mBackends)
+            probe(client, backend, path, timeout);
+
+          try {
+            sleep(interval);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    };
+    mProbeThread.setDaemon(true);
+    mProbeThread.start();
+  }
+
+  /**
+   * Stop the health probes, if they're running.
+   */
+  public synchronized void stop() {
+    if (mProbeThread != null) {
+      mProbeThread.interrupt();
+      mProbeThread = null;
+    }
+  }
+
+  /**
+   * Probe a backend once and record the result.
+   */
+  private void probe(HttpClient client, Backend backend, String path,
+      int timeout) {
+    GetMethod method  = new GetMethod("http://" + backend.getHostAndPort() +
+                                      path);
+    boolean   ok      = false;
+
+    method.getParams().setSoTimeout(timeout);
+    method.setFollowRedirects(false);
+
+    try {
+      int status = client.executeMethod(method);
+      ok = (status >= 200 && status < 400);
+    } catch (IOException e) {
+      ok = false;
+    } finally {
+      method.releaseConnection();
+    }
+
+    synchronized (this) {
+      backend.mProbeFailed = !ok;
+      if (ok) {
+        backend.mFailures     = 0;
+        backend.mEjectedUntil = 0;
+      }
+      notifyAll();
+    }
+  }
+
+  /**
+   * Choose among the backends by the policy.
+   *
+   * @param       now         the current time
+   * @param       exclude     a backend to leave out, or null
+   * @param       upOnly      whether to leave out backends that are out
+   * @return                  the backend, or null if there's none with
+   *                          room to pick
+   */
+  private Backend pick(long now, Backend exclude, boolean upOnly) {
+    Backend best  = null;
+    int     total = 0;
+    int     n     = mBackends.length;
+
+    // start at a different place each time so ties are spread around
+    mNext = (mNext + 1) % n;
+
+    for (int i=0; i<n; i++) {
+      Backend b = mBackends[(mNext + i) % n];
+
+      if (b == exclude || (upOnly && !b.isUp(now)) || !hasRoom(b))
+        continue;
+
+      if (mRoundRobin) {
+        // smooth weighted round-robin: each pick goes to the backend that
+        // is furthest behind its share
+        b.mCurrentWeight += b.mWeight;
+        total            += b.mWeight;
+        if (best == null || b.mCurrentWeight > best.mCurrentWeight)
+          best = b;
+      } else if (best == null ||
+          (long) b.mOutstanding * best.mWeight <
+          (long) best.mOutstanding * b.mWeight) {
+        best = b;
+      }
+    }
+
+    if (mRoundRobin && best != null)
+      best.mCurrentWeight -= total;
+
+    return best;
+  }
+
+  /**
+   * @return whether any backend but the excluded one is up, with room or
+   *         not
+   */
+  private boolean anyUp(long now, Backend exclude) {
+    for (Backend b : mBackends)
+      if (b != exclude && b.isUp(now))
+        return true;
+    return false;
+  }
+
+  private boolean hasRoom(Backend b) {
+    return mMaxOutstanding <= 0 || b.mOutstanding < mMaxOutstanding;
+  }
+}
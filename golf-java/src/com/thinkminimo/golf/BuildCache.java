@@ -0,0 +1,172 @@
+package com.thinkminimo.golf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * On-disk cache of compiled components, scripts and styles. An entry is
+ * keyed by a hash of everything that goes into compiling it: the source
+ * files, the listing of any resource directory, and the golf version and
+ * compiler flags. When none of those have changed, the compiled output is
+ * reused instead of compiled again.
+ */
+public class BuildCache {
+
+  private static final String EXT = ".json";
+
+  private final File            mDir;
+  private final String          mSalt;
+  private final HashSet<String> mUsed = new HashSet<String>();
+
+  /**
+   * Constructor.
+   *
+   * @param       dir         the directory to keep entries in
+   * @param       salt        the golf version and compiler flags, so that
+   *                          changing them doesn't reuse old output
+   */
+  public BuildCache(File dir, String salt) {
+    mDir  = dir;
+    mSalt = salt;
+    mDir.mkdirs();
+  }
+
+  /**
+   * Make the key for a compile job.
+   *
+   * @param       kind        what's compiled ("component", etc.)
+   * @param       name        the name of the thing compiled
+   * @param       inputs      the files it's compiled from; for directories
+   *                          only the listing counts
+   * @return                  the key
+   */
+  public String key(String kind, String name, File... inputs)
+      throws IOException {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e.toString());
+    }
+
+    update(md, mSalt);
+    update(md, kind);
+    update(md, name);
+
+    for (File input : inputs)
+      hash(md, input, "");
+
+    return new String(Hex.encodeHex(md.digest()));
+  }
+
+  /**
+   * Get the compiled output for a key.
+   *
+   * @param       key         the key
+   * @return                  the output, or null if there isn't any
+   */
+  public JSONObject get(String key) {
+    File file = new File(mDir, key + EXT);
+
+    synchronized (this) {
+      mUsed.add(key);
+    }
+
+    if (!file.isFile())
+      return null;
+
+    try {
+      return new JSONObject(FileUtils.readFileToString(file, "UTF-8"));
+    } catch (IOException e) {
+      return null;
+    } catch (JSONException e) {
+      // half-written or corrupted, so compile it again
+      return null;
+    }
+  }
+
+  /**
+   * Store the compiled output for a key.
+   *
+   * @param       key         the key
+   * @param       value       the output
+   */
+  public void put(String key, JSONObject value) throws IOException {
+    File tmp  = File.createTempFile(key, ".tmp", mDir);
+    File file = new File(mDir, key + EXT);
+
+    FileUtils.writeStringToFile(tmp, value.toString(), "UTF-8");
+
+    // rename so that readers never see a partly written entry
+    if (!tmp.renameTo(file)) {
+      file.delete();
+      if (!tmp.renameTo(file)) {
+        tmp.delete();
+        throw new IOException("can't write " + file);
+      }
+    }
+
+    synchronized (this) {
+      mUsed.add(key);
+    }
+  }
+
+  /**
+   * Delete the entries that haven't been used since the last prune. Call
+   * this after a full build; whatever it didn't use is out of date.
+   */
+  public synchronized void prune() {
+    String[] names = mDir.list();
+
+    if (names != null) {
+      for (String name : names) {
+        if (name.endsWith(EXT) &&
+            !mUsed.contains(name.substring(0, name.length() - EXT.length())))
+          new File(mDir, name).delete();
+      }
+    }
+
+    mUsed.clear();
+  }
+
+  private static void hash(MessageDigest md, File file, String path)
+      throws IOException {
+    update(md, path);
+
+    if (file.isDirectory()) {
+      String[] list = file.list();
+      Arrays.sort(list);
+      for (String f : list)
+        if (!f.startsWith("."))
+          hash(md, new File(file, f), path + "/" + f);
+    } else if (file.isFile() && path.length() == 0) {
+      byte[]      buf = new byte[8192];
+      InputStream in  = new FileInputStream(file);
+      try {
+        int n;
+        while ((n = in.read(buf)) != -1)
+          md.update(buf, 0, n);
+      } finally {
+        in.close();
+      }
+    } else if (!file.exists()) {
+      update(md, "-");
+    }
+  }
+
+  private static void update(MessageDigest md, String s) throws IOException {
+    md.update(s.getBytes("UTF-8"));
+    md.update((byte) 0);
+  }
+}
@@ -0,0 +1,122 @@
+package com.thinkminimo.golf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Accept-Encoding negotiation and compressing output streams for the
+ * gzip and deflate content codings.
+ */
+public class ContentEncoding {
+
+  public static final String GZIP     = "gzip";
+  public static final String DEFLATE  = "deflate";
+
+  /**
+   * Pick the content coding to use for a response, preferring gzip when
+   * the client likes both equally.
+   *
+   * @param       header      the Accept-Encoding request header
+   * @param       deflate     whether deflate is an option for the response
+   * @return                  GZIP, DEFLATE, or null for no compression
+   */
+  public static String negotiate(String header, boolean deflate) {
+    if (header == null)
+      return null;
+
+    float gzipQ     = -1f;
+    float deflateQ  = -1f;
+    float starQ     = -1f;
+
+    for (String part : header.split(",")) {
+      String[]  params  = part.split(";");
+      String    coding  = params[0].trim().toLowerCase();
+      float     q       = 1f;
+
+      for (int i=1; i<params.length; i++) {
+        String p = params[i].trim();
+        if (p.startsWith("q=")) {
+          try {
+            q = Float.parseFloat(p.substring(2));
+          } catch (NumberFormatException e) {
+            q = 0f;
+          }
+        }
+      }
+
+      if (coding.equals(GZIP) || coding.equals("x-gzip"))
+        gzipQ = q;
+      else if (coding.equals(DEFLATE))
+        deflateQ = q;
+      else if (coding.equals("*"))
+        starQ = q;
+    }
+
+    // codings that weren't mentioned get the wildcard's quality, if any
+    gzipQ     = (gzipQ    < 0f ? starQ : gzipQ);
+    deflateQ  = (deflateQ < 0f ? starQ : deflateQ);
+
+    if (gzipQ > 0f && (gzipQ >= deflateQ || !deflate))
+      return GZIP;
+    if (deflate && deflateQ > 0f)
+      return DEFLATE;
+    return null;
+  }
+
+  /**
+   * Whether a content type is worth compressing at all.
+   *
+   * @param       mimeType    the content type
+   * @return                  true for text-like types
+   */
+  public static boolean isCompressible(String mimeType) {
+    return mimeType.startsWith("text/")     ||
+           mimeType.endsWith("javascript")  ||
+           mimeType.endsWith("json")        ||
+           mimeType.endsWith("xml");
+  }
+
+  /**
+   * Wrap a stream so that what's written to it is compressed.
+   *
+   * @param       out         the stream to write compressed bytes to
+   * @param       coding      GZIP or DEFLATE
+   * @param       level       the compression level (0-9, or -1 for the
+   *                          zlib default)
+   * @return                  the compressing stream; close it to finish
+   *                          the compressed data
+   */
+  public static OutputStream wrap(OutputStream out, String coding,
+      final int level) throws IOException {
+    if (GZIP.equals(coding)) {
+      return new GZIPOutputStream(out) {
+        {
+          def.setLevel(level);
+        }
+      };
+    }
+
+    if (DEFLATE.equals(coding))
+      return new DeflaterOutputStream(out, new Deflater(level));
+
+    return out;
+  }
+
+  /**
+   * Make the ETag of a representation in some content coding from the
+   * ETag of the uncompressed one.
+   *
+   * @param       etag        the quoted ETag
+   * @param       coding      GZIP, DEFLATE, or null
+   * @return                  the quoted ETag for the coding
+   */
+  public static String etag(String etag, String coding) {
+    if (coding == null)
+      return etag;
+    String suffix = (GZIP.equals(coding) ? "-gz" : "-df");
+    return etag.substring(0, etag.length() - 1) + suffix + "\"";
+  }
+}
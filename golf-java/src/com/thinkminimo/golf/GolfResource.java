@@ -467,6 +467,7 @@ public class GolfResource {
   private int                     mSource;
   private String                  mMimeType;
   private File                    mCwd;
+  private File                    mFile;
 
   public GolfResource(ServletContext context, String path)
       throws FileNotFoundException, IOException {
@@ -490,6 +491,33 @@ public class GolfResource {
   public int      getSource()         { return mSource;    }
   public void     setSource(int src)  { mSource = src;     }
   public String   getMimeType()       { return mMimeType;  }
+  public File     getFile()           { return mFile;      }
+
+  /**
+   * @return the last modified time of the resource file, or zero if the
+   *         resource came from the jarfile
+   */
+  public long getLastModified() {
+    return (mFile == null ? 0L : mFile.lastModified());
+  }
+
+  /**
+   * Find the file a resource would be loaded from, without loading it.
+   *
+   * @param       context     the servlet context
+   * @param       path        the resource path
+   * @return                  the file, or null if the resource isn't a
+   *                          file on the filesystem
+   */
+  public static File findFile(ServletContext context, String path) {
+    String real = context.getRealPath(path.replaceFirst("/", ""));
+
+    if (real == null)
+      return null;
+
+    File theFile = new File(real);
+    return (theFile.isFile() ? theFile : null);
+  }
 
   /**
    * Loads contents of resource into the ByteArrayOutputStream, sets the
@@ -500,6 +528,7 @@ public class GolfResource {
 
     InputStream in  = null;
     mSource = SOURCE_NONE;
+    mFile   = null;
 
     if (mContext != null)
       mPath = mPath.replaceFirst("/", "");
@@ -514,8 +543,10 @@ public class GolfResource {
       else
         theFile = new File(mCwd, mPath);
        
-      if (theFile.exists())
-        in = new FileInputStream(theFile);
+      if (theFile.exists()) {
+        in    = new FileInputStream(theFile);
+        mFile = theFile;
+      }
     } catch (Exception x) { }
 
     // from the jarfile resource
@@ -530,10 +561,16 @@ public class GolfResource {
     else if (mSource == SOURCE_NONE)
       mSource = SOURCE_JAR;
 
-    mBuffer = new ByteArrayOutputStream(BYTE_BUF_SIZE);
+    mBuffer = new ByteArrayOutputStream(
+        mFile == null ? BYTE_BUF_SIZE 
+                      : (int) Math.min(mFile.length(), Integer.MAX_VALUE));
 
-    int nread;
-    while ((nread = in.read(buf)) != -1) mBuffer.write(buf, 0, nread);
+    try {
+      int nread;
+      while ((nread = in.read(buf)) != -1) mBuffer.write(buf, 0, nread);
+    } finally {
+      in.close();
+    }
   }
 
   /**
@@ -4,8 +4,14 @@ import org.json.JSONStringer;
 import org.json.JSONException;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.*;
 import java.util.regex.Pattern;
 import net.sourceforge.htmlunit.corejs.javascript.*;
@@ -17,6 +23,8 @@ import javax.servlet.http.*;
 
 import org.mortbay.jetty.servlet.DefaultServlet;
 
+import org.apache.commons.codec.binary.Base64;
+
 import com.gargoylesoftware.htmlunit.*;
 import com.gargoylesoftware.htmlunit.html.*;
 import com.gargoylesoftware.htmlunit.xml.*;
@@ -37,6 +45,52 @@ public class GolfServlet extends HttpServlet {
   public static final int     LOG_NONE                = 999;
 
   public static final int     JSVM_TIMEOUT            = 10000;
+  public static final int     JSVM_REAP_INTERVAL      = 30000;
+
+  public static final String  SNAPSHOT_SESSID         = "__SNAPSHOT_SESSID__";
+
+  // the session attribute that holds golf's SessionState
+  public static final String  SESSION_STATE           = "golf.session";
+
+  // the cookie that holds it instead, in session cookie mode
+  public static final String  SESSION_COOKIE          = "golf";
+
+  // how long (seconds) a session cookie lasts without being rewritten
+  public static final int     SESSION_COOKIE_TTL      = 1800;
+
+  // document type: xhtml
+  public static final String  XHTML_DTD               = 
+    "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\"\n" +
+    "\"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\">\n";
+
+  // placeholders in the new.html skeleton, in slot order
+  private static final String[] SKELETON_SLOTS = {
+    "__SVRSIDE__",
+    "__SESSID__",
+    "__SERVLET_URL__",
+    "__URL_HASH__",
+    "__FORCEBOT__",
+    "__FORCEPROXY__",
+    "__FORCECLIENT__",
+    "__GOLF_VERSION__",
+    "noindex,nofollow"
+  };
+
+  private static final int    SLOT_SVRSIDE            = 0;
+  private static final int    SLOT_SESSID             = 1;
+  private static final int    SLOT_SERVLET_URL        = 2;
+  private static final int    SLOT_URL_HASH           = 3;
+  private static final int    SLOT_FORCEBOT           = 4;
+  private static final int    SLOT_FORCEPROXY         = 5;
+  private static final int    SLOT_FORCECLIENT        = 6;
+  private static final int    SLOT_GOLF_VERSION       = 7;
+  private static final int    SLOT_ROBOTS             = 8;
+
+  // more ranges than this in one request get the whole resource
+  private static final int    MAX_RANGES              = 16;
+
+  // how many user agents to remember the forcebot, etc. answers for
+  private static final int    UA_CACHE_SIZE           = 1024;
 
   private class StoredJSVM {
     public WebClient client;
@@ -50,6 +104,31 @@ public class GolfServlet extends HttpServlet {
     }
   }
 
+  /**
+   * Everything cacheStaticFiles() loads, published all at once. A snapshot
+   * is never modified, so a request that takes one sees a consistent set of
+   * templates and user agent patterns even if a reload happens meanwhile.
+   */
+  private static final class StaticFiles {
+    final HtmlTemplate  newHtml;
+    final HtmlTemplate  newHtmlFc;
+    final HtmlTemplate  errorPage;
+    final HtmlTemplate  jsDetect;
+    final UserAgentClassifier userAgents;
+    final long          version;
+
+    StaticFiles(HtmlTemplate newHtml, HtmlTemplate newHtmlFc,
+        HtmlTemplate errorPage, HtmlTemplate jsDetect,
+        UserAgentClassifier userAgents, long version) {
+      this.newHtml      = newHtml;
+      this.newHtmlFc    = newHtmlFc;
+      this.errorPage    = errorPage;
+      this.jsDetect     = jsDetect;
+      this.userAgents   = userAgents;
+      this.version      = version;
+    }
+  }
+
   public static class RedirectException extends Exception {
     public RedirectException(String msg) {
       super(msg);
@@ -62,88 +141,308 @@ public class GolfServlet extends HttpServlet {
     }
   }
 
+  /**
+   * Everything golf keeps in a session, stored as one attribute so that
+   * it's read once per request and is small to replicate or persist. Each
+   * flag has a second bit saying whether it's known yet, and the sequence
+   * number is -1 until it's set.
+   */
+  private static final class SessionState implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    static final int JS           = 0x01;
+    static final int FORCEBOT     = 0x04;
+    static final int FORCEPROXY   = 0x10;
+    static final int FORCECLIENT  = 0x40;
+
+    private int     mFlags      = 0;
+    private int     mSeq        = -1;
+    private String  mIpAddr     = null;
+    private String  mLastUrl    = null;
+    private String  mLastEvent  = null;
+    private String  mLastTarget = null;
+
+    // a flag's "known" bit is the one above its value bit
+    synchronized Boolean getFlag(int flag) {
+      return (mFlags & (flag << 1)) == 0 ? null : (mFlags & flag) != 0;
+    }
+    synchronized void setFlag(int flag, Boolean value) {
+      mFlags &= ~(flag | (flag << 1));
+      if (value != null)
+        mFlags |= (value.booleanValue() ? flag : 0) | (flag << 1);
+    }
+
+    /**
+     * @return the state as a cookie value: the fields separated by dots,
+     *         with strings base64 encoded after a '~' (empty for null)
+     */
+    synchronized String toCookie() {
+      return Integer.toString(mFlags, 36) + "." +
+        Integer.toString(mSeq, 36) + "." +
+        encode(mIpAddr) + "." +
+        encode(mLastUrl) + "." +
+        encode(mLastEvent) + "." +
+        encode(mLastTarget);
+    }
+
+    /**
+     * @param   value   a value from toCookie()
+     * @return          the state, or null if the value can't be parsed
+     */
+    static SessionState fromCookie(String value) {
+      String[] f = value.split("\\.", -1);
+
+      if (f.length != 6)
+        return null;
+
+      SessionState state = new SessionState();
+      try {
+        state.mFlags      = Integer.parseInt(f[0], 36);
+        state.mSeq        = Integer.parseInt(f[1], 36);
+        state.mIpAddr     = decode(f[2]);
+        state.mLastUrl    = decode(f[3]);
+        state.mLastEvent  = decode(f[4]);
+        state.mLastTarget = decode(f[5]);
+      } catch (NumberFormatException e) {
+        return null;
+      } catch (UnsupportedEncodingException e) {
+        return null;
+      }
+      return state;
+    }
+
+    private static String encode(String s) {
+      try {
+        return (s == null ? "" :
+            "~" + Base64.encodeBase64URLSafeString(s.getBytes("UTF-8")));
+      } catch (UnsupportedEncodingException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    private static String decode(String s)
+        throws UnsupportedEncodingException {
+      return (s.length() == 0 ? null :
+          new String(Base64.decodeBase64(s.substring(1)), "UTF-8"));
+    }
+  }
+
+  /**
+   * The golf session state for a request. It's kept in the HttpSession,
+   * or in session cookie mode in a signed cookie, so that any server can
+   * handle any request without a session of its own. Clients that don't
+   * keep cookies still get an HttpSession in cookie mode (see
+   * useHttpSession()), and proxy mode needs one anyway for the jsvm.
+   */
   private class GolfSession {
-    private HttpSession mSess;
+    private HttpServletRequest  mReq;
+    private HttpServletResponse mResp;
+    private HttpSession         mSess;
+    private SessionState        mState;
+    private boolean             mNew;
+    private boolean             mDirty  = false;
+
+    public GolfSession(HttpServletRequest req, HttpServletResponse resp) { 
+      mReq    = req;
+      mResp   = resp;
+
+      if (mSessionCookie == null) {
+        mSess = req.getSession(true);
+      } else {
+        // a session that holds the state means cookies didn't work
+        HttpSession sess = req.getSession(false);
+        if (sess != null && sess.getAttribute(SESSION_STATE) != null)
+          mSess = sess;
+      }
+
+      if (mSess != null) {
+        mState  = (SessionState) mSess.getAttribute(SESSION_STATE);
+        mNew    = mSess.isNew();
+      } else {
+        mState  = readCookie();
+        mNew    = (mState == null);
+      }
 
-    public GolfSession(HttpServletRequest req) { 
-      mSess = req.getSession(true); 
+      // no cookie is sent for an empty state until something's set in it
+      if (mState == null) {
+        mState = new SessionState();
+        if (mSess != null)
+          save();
+      }
     }
 
-    private String get(String name) { 
-      return (String) mSess.getAttribute(name);
+    private SessionState readCookie() {
+      Cookie[] cookies = mReq.getCookies();
+
+      if (cookies != null) {
+        for (Cookie c : cookies) {
+          if (SESSION_COOKIE.equals(c.getName())) {
+            String value = mSessionCookie.verify(c.getValue());
+            if (value != null)
+              return SessionState.fromCookie(value);
+          }
+        }
+      }
+      return null;
     }
-    private void set(String name, String value) { 
-      mSess.setAttribute(name, value);
+
+    // set it again after every change, so replicating containers notice
+    private void save() {
+      if (mSess != null)
+        mSess.setAttribute(SESSION_STATE, mState);
+      else
+        mDirty = true;
+    }
+
+    /**
+     * @return whether the client didn't send any session state
+     */
+    public boolean isNew() {
+      return mNew;
+    }
+
+    /**
+     * @return the session id, or null if the state is in a cookie
+     */
+    public String getId() {
+      return (mSess != null ? mSess.getId() : null);
+    }
+
+    /**
+     * Throw the session away and start a new, empty one.
+     */
+    public void reset() {
+      HttpSession old = mReq.getSession(false);
+
+      if (old != null)
+        old.invalidate();
+
+      mState  = new SessionState();
+      mSess   = (mSess != null ? mReq.getSession(true) : null);
+      save();
+    }
+
+    /**
+     * Keep the state in an HttpSession from now on, for a client that
+     * doesn't send the session cookie back.
+     */
+    public void useHttpSession() {
+      mSess   = mReq.getSession(true);
+      mState  = new SessionState();
+      mNew    = mSess.isNew();
+      mDirty  = false;
+      save();
+    }
+
+    /**
+     * Send the session cookie, if the state is in one and it changed.
+     * Call this before the response is committed.
+     *
+     * @return              whether a cookie was sent
+     */
+    public boolean flush() {
+      if (!mDirty)
+        return false;
+
+      Cookie c = new Cookie(SESSION_COOKIE,
+          mSessionCookie.sign(mState.toCookie()));
+      String path = mReq.getContextPath();
+
+      c.setPath(path.length() > 0 ? path : "/");
+      c.setSecure(mReq.isSecure());
+      mResp.addCookie(c);
+      mDirty = false;
+      return true;
     }
 
     public Integer getSeq() { 
-      try { 
-        return Integer.parseInt(get("golf"));
-      } catch (NumberFormatException e) { }
-      return null;
+      synchronized (mState) {
+        return (mState.mSeq < 0 ? null : Integer.valueOf(mState.mSeq));
+      }
     }
     public void setSeq(Integer value) {
-      set("golf", String.valueOf(value));
+      synchronized (mState) {
+        mState.mSeq = (value == null ? -1 : value.intValue());
+      }
+      save();
     }
 
     public Boolean getJs() {
-      return get("js") == null ? null : Boolean.parseBoolean(get("js"));
+      return mState.getFlag(SessionState.JS);
     }
     public void setJs(boolean value) {
-      set("js", String.valueOf(value));
+      mState.setFlag(SessionState.JS, value);
+      save();
     }
 
     public String getIpAddr() {
-      return get("ipaddr");
+      synchronized (mState) {
+        return mState.mIpAddr;
+      }
     }
     public void setIpAddr(String value) {
-      set("ipaddr", value);
+      synchronized (mState) {
+        mState.mIpAddr = value;
+      }
+      save();
     }
 
     public String getLastUrl() {
-      return get("lasturl");
+      synchronized (mState) {
+        return mState.mLastUrl;
+      }
     }
     public void setLastUrl(String value) {
-      set("lasturl", value);
+      synchronized (mState) {
+        mState.mLastUrl = value;
+      }
+      save();
     }
 
     public String getLastEvent() {
-      return get("lastevent");
+      synchronized (mState) {
+        return mState.mLastEvent;
+      }
     }
     public void setLastEvent(String value) {
-      set("lastevent", value);
+      synchronized (mState) {
+        mState.mLastEvent = value;
+      }
+      save();
     }
 
     public String getLastTarget() {
-      return get("lasttarget");
+      synchronized (mState) {
+        return mState.mLastTarget;
+      }
     }
     public void setLastTarget(String value) {
-      set("lasttarget", value);
+      synchronized (mState) {
+        mState.mLastTarget = value;
+      }
+      save();
     }
 
     public Boolean getForceClient() {
-      return get("forceclient") == null 
-                ? null 
-                : Boolean.parseBoolean(get("forceclient"));
+      return mState.getFlag(SessionState.FORCECLIENT);
     }
     public void setForceClient(Boolean value) {
-      set("forceclient", String.valueOf(value));
+      mState.setFlag(SessionState.FORCECLIENT, value);
+      save();
     }
     public Boolean getForceProxy() {
-      return get("forceproxy") == null 
-                ? null 
-                : Boolean.parseBoolean(get("forceproxy"));
+      return mState.getFlag(SessionState.FORCEPROXY);
     }
     public void setForceProxy(Boolean value) {
-      set("forceproxy", String.valueOf(value));
+      mState.setFlag(SessionState.FORCEPROXY, value);
+      save();
     }
     public Boolean getForceBot() {
-      return get("forceproxy") == null 
-                ? null 
-                : Boolean.parseBoolean(get("forcebot"));
+      return mState.getFlag(SessionState.FORCEBOT);
     }
     public void setForceBot(Boolean value) {
-      set("forcebot", String.valueOf(value));
+      mState.setFlag(SessionState.FORCEBOT, value);
+      save();
     }
   }
 
@@ -230,7 +529,7 @@ public class GolfServlet extends HttpServlet {
       this.request     = request;
       this.response    = response;
       this.p           = new GolfParams(request);
-      this.s           = new GolfSession(request);
+      this.s           = new GolfSession(request, response);
       this.servletUrl  =
         request
           .getRequestURL()
@@ -258,9 +557,10 @@ public class GolfServlet extends HttpServlet {
       // reload the page in proxy mode => destroy old jsvm
       if (p.getReload() != null && p.getReload().booleanValue()) {
         log(this, LOG_INFO, "RELOAD via query parameter");
-        mJsvms.remove(request.getSession().getId());
-        request.getSession(true).invalidate();
-        this.s = new GolfSession(request);
+        HttpSession sess = request.getSession(false);
+        if (sess != null)
+          disposeJsvm(sess.getId());
+        s.reset();
       }
 
       // ensure that the URL is in the standard form
@@ -279,10 +579,13 @@ public class GolfServlet extends HttpServlet {
       }
 
       // fetch the jsvm for this guy
-      jsvm = mJsvms.get(request.getSession().getId());
+      HttpSession sess = request.getSession(false);
+      jsvm = (sess != null ? mJsvms.get(sess.getId()) : null);
 
       if (jsvm == null)
         jsvm = new StoredJSVM((WebClient) null);
+      else
+        jsvm.lastAccessTime = (new Date()).getTime();
     }
 
     public boolean hasEvent() {
@@ -294,18 +597,24 @@ public class GolfServlet extends HttpServlet {
     new ConcurrentHashMap<String, StoredJSVM>();
 
   private static int                  mLogLevel     = LOG_ALL;
-  private static String               mNewHtml      = null;
-  private static String               mNewHtmlFc    = null;
-  private static String               mErrorPage    = null;
-  private static String               mJsDetect     = null;
+  private static volatile StaticFiles mStatic     = null;
+  private static SessionCookie        mSessionCookie = null;
   private static String               mDevMode      = null;
   private static String               mPoolSize     = null;
   private static String               mPoolExpire   = null;
+  private static String               mPoolMinIdle  = null;
+  private static String               mPoolMaxTotal = null;
+  private static JSVMPool             mPool         = null;
+  private static ScheduledExecutorService mReaper   = null;
+  private static ScheduledExecutorService mWatcher  = null;
+  private static volatile Exception   mBuildError   = null;
+  private static SnapshotCache        mSnapshots    = null;
+  private static ResourceCache        mResources    = null;
+  private static long                 mStartTime    = 0L;
+  private static Random               mRandom       = new Random();
+  private static int                  mGzipLevel    = 6;
+  private static int                  mGzipMinSize  = 256;
   private static String               mAppVersion   = null;
-  private static AtomicBoolean        mBotMutex     = new AtomicBoolean();
-  private static ArrayList<String>    mForceProxy   = new ArrayList<String>();
-  private static ArrayList<String>    mForceClient  = new ArrayList<String>();
-  private static ArrayList<String>    mForceBot     = new ArrayList<String>();
 
   /**
    * @see javax.servlet.Servlet#init(javax.servlet.ServletConfig)
@@ -317,18 +626,160 @@ public class GolfServlet extends HttpServlet {
     mDevMode    = config.getInitParameter("devmode");
     mPoolSize   = config.getInitParameter("poolsize");
     mPoolExpire = config.getInitParameter("poolexpire");
+    mPoolMinIdle  = config.getInitParameter("poolminidle");
+    mPoolMaxTotal = config.getInitParameter("poolmaxtotal");
+    String snapTtl    = config.getInitParameter("snapshotttl");
+    String snapBytes  = config.getInitParameter("snapshotbytes");
+    String gzipLevel  = config.getInitParameter("gziplevel");
+    String gzipMin    = config.getInitParameter("gzipminsize");
+    String watchInterval = config.getInitParameter("watchinterval");
+    String sessCookie = config.getInitParameter("sessioncookie");
+    String sessSecret = config.getInitParameter("sessionsecret");
     mAppVersion = config.getInitParameter("version");
 
     // default values
     mDevMode    = (mDevMode    != null ? mDevMode    : "true" );
     mPoolSize   = (mPoolSize   != null ? mPoolSize   : "10"   );
     mPoolExpire = (mPoolExpire != null ? mPoolExpire : "900"  );  // 15 min
+    mPoolMinIdle  = (mPoolMinIdle  != null ? mPoolMinIdle  : "2"  );
+    mPoolMaxTotal = (mPoolMaxTotal != null ? mPoolMaxTotal : 
+        String.valueOf(Integer.parseInt(mPoolSize) + 
+                       Integer.parseInt(mPoolMinIdle)));
+    snapTtl     = (snapTtl     != null ? snapTtl     : "300"  );  // 5 min
+    snapBytes   = (snapBytes   != null ? snapBytes   : "8388608");  // 8 MB
+    gzipLevel   = (gzipLevel   != null ? gzipLevel   : "6"    );
+    gzipMin     = (gzipMin     != null ? gzipMin     : "256"  );  // bytes
+    watchInterval = (watchInterval != null ? watchInterval : "500");  // msec
+    sessCookie  = (sessCookie  != null ? sessCookie  : "false");
     
     // set initial values
-    mBotMutex.set(false);
+    mStartTime = System.currentTimeMillis();
+    mGzipLevel    = Integer.parseInt(gzipLevel);
+    mGzipMinSize  = Integer.parseInt(gzipMin);
+
+    // keep the js detection state in a signed cookie instead of a session
+    if (Boolean.parseBoolean(sessCookie)) {
+      if (sessSecret == null || sessSecret.length() == 0)
+        log("sessioncookie is on but sessionsecret isn't set, so only this "+
+            "server will accept the session cookies it sends");
+      mSessionCookie = new SessionCookie(sessSecret, SESSION_COOKIE_TTL);
+    } else {
+      mSessionCookie = null;
+    }
+
+    // pre-booted jsvms; not in devmode, where the components they loaded
+    // would go stale as soon as the app is edited
+    if (mPool != null)
+      mPool.close();
+    mPool = Boolean.parseBoolean(mDevMode) ? null : new JSVMPool(
+        BrowserVersion.FIREFOX_2,
+        Integer.parseInt(mPoolMinIdle),
+        Integer.parseInt(mPoolMaxTotal),
+        JSVM_TIMEOUT
+    );
+
+    // expire idle jsvms in the background instead of on session creation
+    if (mReaper != null)
+      mReaper.shutdownNow();
+    mReaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "golf-jsvm-reaper");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    mReaper.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          reapJsvms();
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+    }, JSVM_REAP_INTERVAL, JSVM_REAP_INTERVAL, TimeUnit.MILLISECONDS);
+
+    // rendered proxymode pages shared between sessions; not in devmode,
+    // where the app can change between requests
+    long ttl    = Long.parseLong(snapTtl) * 1000L; // convert sec --> msec
+    long bytes  = Long.parseLong(snapBytes);
+    mSnapshots  = (Boolean.parseBoolean(mDevMode) || ttl <= 0 || bytes <= 0)
+                    ? null : new SnapshotCache(ttl, bytes);
+
+    // static resources, reloaded when they change in devmode
+    mResources  = new ResourceCache(getServletContext(),
+                    Boolean.parseBoolean(mDevMode), mGzipLevel, mGzipMinSize);
 
     // process the static files that need to be kept in memory
     cacheStaticFiles();
+
+    // in devmode, rebuild when the app changes instead of on every request
+    if (mWatcher != null)
+      mWatcher.shutdownNow();
+    mWatcher = null;
+    String appRoot = getServletContext().getRealPath("/");
+    if (Boolean.parseBoolean(mDevMode) && appRoot != null)
+      startWatcher(new File(appRoot), Long.parseLong(watchInterval));
+  }
+
+  /**
+   * Poll the app directory for changes and rebuild the components and
+   * new.html when there are any. Thanks to the build cache only the
+   * components that changed are compiled again. The rebuilt files are
+   * swapped in as a whole once they're ready, so requests keep getting
+   * the old ones in the meantime.
+   *
+   * @param       appRoot     the app directory
+   * @param       interval    time between polls (msec)
+   */
+  private void startWatcher(File appRoot, long interval) {
+    final AppWatcher watcher = new AppWatcher(appRoot, Arrays.asList(
+          Main.COMPONENTS_JS, Main.NEW_HTML, Main.NEW_FC_HTML));
+
+    // the first poll takes the baseline, which cacheStaticFiles built
+    watcher.poll();
+
+    mWatcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "golf-app-watcher");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    mWatcher.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        if (!watcher.poll())
+          return;
+        try {
+          long start = System.currentTimeMillis();
+          cacheStaticFiles();
+          mBuildError = null;
+          getServletContext().log("REBUILT app in " +
+              (System.currentTimeMillis() - start) + "ms");
+        } catch (Exception e) {
+          // shown on the next request until a rebuild works
+          mBuildError = e;
+          e.printStackTrace();
+        }
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @see javax.servlet.Servlet#destroy()
+   */
+  public void destroy() {
+    if (mWatcher != null)
+      mWatcher.shutdownNow();
+    mWatcher = null;
+    if (mReaper != null)
+      mReaper.shutdownNow();
+    mReaper = null;
+    if (mPool != null)
+      mPool.close();
+    mPool = null;
+    for (String key : mJsvms.keySet())
+      disposeJsvm(key);
+    super.destroy();
   }
 
   /**
@@ -378,6 +829,7 @@ public class GolfServlet extends HttpServlet {
       // 301 PERMANENTLY MOVED
       logResponse(context, 301);
       log(context, LOG_INFO, "301 ---to--> "+r.getMessage());
+      context.s.flush();
       context.response.setHeader("Location", r.getMessage());
       context.response.sendError(301);
     }
@@ -386,6 +838,7 @@ public class GolfServlet extends HttpServlet {
       // 302 FOUND
       logResponse(context, 302);
       log(context, LOG_INFO, "302 ---to--> "+r.getMessage());
+      context.s.flush();
       context.response.sendRedirect(r.getMessage());
     }
 
@@ -412,129 +865,145 @@ public class GolfServlet extends HttpServlet {
         Main.cacheComponentsFile();
         Main.cacheNewDotHtmlFile();
       }
-      mNewHtml  =
-        (new GolfResource(getServletContext(), Main.NEW_HTML)).toString();
-      mNewHtmlFc  =
-        (new GolfResource(getServletContext(), Main.NEW_FC_HTML)).toString();
-      mErrorPage =
-        (new GolfResource(getServletContext(), Main.ERROR_HTML)).toString();
-      mJsDetect = 
-        (new GolfResource(getServletContext(), Main.JSDETECT_HTML)).toString();
-
-      try {
-        // wait for resource to be available
-        while (!mBotMutex.compareAndSet(false, true));
-
-        mForceProxy =
-          (new GolfResource(getServletContext(), Main.FORCEPROXY_TXT))
-            .toArrayList();
-
-        mForceClient =
-          (new GolfResource(getServletContext(), Main.FORCECLIENT_TXT))
-            .toArrayList();
-
-        mForceBot =
-          (new GolfResource(getServletContext(), Main.FORCEBOT_TXT))
-            .toArrayList();
-
-      } catch (FileNotFoundException fx) {
-      } finally {
-        mBotMutex.set(false);
-      }
+      GolfResource newHtml   = 
+        new GolfResource(getServletContext(), Main.NEW_HTML);
+      GolfResource newHtmlFc = 
+        new GolfResource(getServletContext(), Main.NEW_FC_HTML);
+
+      // build the whole snapshot first, then swap it in with one write
+      mStatic = new StaticFiles(
+        new HtmlTemplate(newHtml.toString(), SKELETON_SLOTS,
+          newHtml.getLastModified()),
+        new HtmlTemplate(newHtmlFc.toString(), SKELETON_SLOTS,
+          newHtmlFc.getLastModified()),
+        new HtmlTemplate(
+          (new GolfResource(getServletContext(), Main.ERROR_HTML)).toString(),
+          new String[] { "<%error%>" }),
+        new HtmlTemplate(
+          (new GolfResource(getServletContext(), Main.JSDETECT_HTML))
+            .toString(),
+          new String[] { "__HAVE_JS__", "__DONT_HAVE_JS__" }),
+        new UserAgentClassifier(
+          loadPatterns(Main.FORCEBOT_TXT),
+          loadPatterns(Main.FORCEPROXY_TXT),
+          loadPatterns(Main.FORCECLIENT_TXT),
+          UA_CACHE_SIZE),
+        System.currentTimeMillis()
+      );
     } catch (Exception e) {
       throw new ServletException("can't cache static files", e);
     }
   }
 
   /**
-   * Do text processing of html to inject server/client specific things, etc.
+   * Read the user agent patterns in a file, one per line.
+   *
+   * @param       name        the file
+   * @return                  the patterns, none if there's no such file
+   */
+  private ArrayList<String> loadPatterns(String name) throws IOException {
+    try {
+      return (new GolfResource(getServletContext(), name)).toArrayList();
+    } catch (FileNotFoundException e) {
+      return new ArrayList<String>();
+    }
+  }
+
+  /**
+   * Fill in the skeleton template slots for this request.
    *
-   * @param       page        the html page contents
    * @param       context     the golf request object
    * @param       server      whether to process for serverside or clientside
-   * @return                  the processed page html contents
+   * @return                  the slot values
    */
-  private static String preprocess(String page, GolfContext context, boolean server) {
-    String sid = context.request.getSession().getId();
+  private static String[] skeletonValues(GolfContext context, boolean server) {
+    String[] v = new String[SKELETON_SLOTS.length];
+
+    // on the client window.serverside must be false, and vice versa
+    v[SLOT_SVRSIDE]       = (server ? "true" : "false");
 
-    // pattern matching all script tags (should this be removed?)
-    String pat1 = "<noscript>.*</noscript>";
+    // import the session ID into the javascript environment
+    HttpSession sess      = context.request.getSession(false);
+    v[SLOT_SESSID]        = (sess != null ? sess.getId() : "");
 
-    // pattern matching all script tags (should this be removed?)
-    String pat2 = 
-      "<script type=\"text/javascript\"[^>]*>([^<]|//<!\\[CDATA\\[)*</script>";
+    // the servlet url and url fragment (shenanigans here)
+    v[SLOT_SERVLET_URL]   = context.servletUrl;
+    v[SLOT_URL_HASH]      = context.urlHash;
 
-    // document type: xhtml
-    String dtd = 
-      "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\"\n" +
-      "\"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\">\n";
+    // bot, proxy, client mode forced?
+    v[SLOT_FORCEBOT]      = context.s.getForceBot().toString();
+    v[SLOT_FORCEPROXY]    = context.s.getForceProxy().toString();
+    v[SLOT_FORCECLIENT]   = context.s.getForceClient().toString();
 
-    // remove xml tag (why is it even there?)
-    if (!server)
-      page = page.replaceFirst("^<\\?xml [^>]+>\n", "");
+    // the golf version
+    v[SLOT_GOLF_VERSION]  = mAppVersion;
 
     // robots must not index event proxy (because infinite loops, etc.)
-    if (!context.hasEvent())
-      page = page.replaceFirst("noindex,nofollow", "index,follow");
-
-    // remove the golfid attribute as it's not necessary on the client
-    // and it is frowned upon by the w3c validator
-    if (!server)
-      page = page.replaceAll("(<[^>]+) golfid=\"[0-9]+\"", "$1");
-
-    if (! context.s.getJs().booleanValue() && !server) {
-      // proxy mode: remove javascript/noscript except for serverside
-      page = page.replaceAll(pat1, "");
-      page = page.replaceAll(pat2, "");
-
-      for (int i=0, j=0; (i=page.indexOf("<style", i)) != -1; i=j) {
-        j = page.indexOf("</style>", i);
-        page = page.substring(0, i)
-          + page.substring(i, j).replaceAll("&gt;", ">") 
-                                .replaceAll("&lt;", "<")
-                                .replaceAll("&amp;", "&")
-                                .replaceAll("&apos;", "'")
-                                .replaceAll("\n", "") // FIXME this is sketchy
-          + page.substring(j);
-      }
+    v[SLOT_ROBOTS]        = (context.hasEvent() ? null : "index,follow");
 
-      if (context.s.getForceBot().booleanValue()) {
-        page = page.replaceAll("(<[^>]+) style=\"[^\"]*\"", "$1");
-        page = page.replaceAll("(<[^>]+) style='[^']*'",    "$1");
-        page = page.replaceAll("(<[^>]+) class=\"[^\"]*\"", "$1");
-        page = page.replaceAll("(<[^>]+) class='[^']*'",    "$1");
-      }
-    } else {
-      // on the client window.serverside must be false, and vice versa
-      page = page.replaceFirst("__SVRSIDE__", (server ? "true" : "false"));
+    return v;
+  }
 
-      // import the session ID into the javascript environment
-      page = page.replaceFirst("__SESSID__", sid);
-      
-      // the servlet url (shenanigans here)
-      page = page.replaceFirst("__SERVLET_URL__", context.servletUrl);
-      
-      // the url fragment (shenanigans here)
-      page = page.replaceFirst("__URL_HASH__", context.urlHash);
-      
-      // bot mode forced?
-      page = page.replaceFirst("__FORCEBOT__",
-          context.s.getForceBot().toString());
-      
-      // proxy mode forced?
-      page = page.replaceFirst("__FORCEPROXY__",
-          context.s.getForceProxy().toString());
-      
-      // client mode forced?
-      page = page.replaceFirst("__FORCECLIENT__",
-          context.s.getForceClient().toString());
-      
-      // the golf version
-      page = page.replaceFirst("__GOLF_VERSION__", mAppVersion);
-    }
+  /**
+   * Write the skeleton html for the client, with the server/client specific
+   * things injected.
+   *
+   * @param       tpl         the skeleton template
+   * @param       values      the slot values from skeletonValues()
+   * @param       out         where to write the page
+   */
+  private static void writeSkeleton(HtmlTemplate tpl, String[] values,
+      Writer out) throws IOException {
+    out.write(XHTML_DTD);
+    tpl.render(out, values);
+  }
+
+  /**
+   * Write the html rendered by a proxymode jsvm for the client. In proxy
+   * mode javascript and noscript are removed, and bots don't get any
+   * presentation cruft either.
+   *
+   * @param       page        the html page contents
+   * @param       context     the golf request object
+   * @param       out         where to write the page
+   */
+  private static void writeProxied(String page, GolfContext context,
+      Writer out) throws IOException {
+    ProxyHtmlFilter filter = new ProxyHtmlFilter(
+        !context.s.getJs().booleanValue(),
+        context.s.getForceBot().booleanValue(),
+        !context.hasEvent()
+    );
+
+    // dtd for the client only, because it breaks the xml parser
+    out.write(XHTML_DTD);
+    filter.write(page, out);
+  }
 
-    // no dtd for serverside because it breaks the xml parser
-    return (server ? "" : dtd) + page;
+  /**
+   * Prepare the serverside skeleton for a pooled jsvm. The session specific
+   * values are left blank; they're filled in by javascript when the jsvm is
+   * checked out of the pool.
+   *
+   * @param       page        the skeleton template
+   * @param       servletUrl  the servlet url
+   * @param       forcebot    whether the jsvm will serve a bot
+   * @return                  the processed page html contents
+   */
+  private static String preprocessPooled(HtmlTemplate page, 
+      String servletUrl, boolean forcebot) {
+    String[] v = new String[SKELETON_SLOTS.length];
+
+    v[SLOT_SVRSIDE]       = "true";
+    v[SLOT_SESSID]        = "";
+    v[SLOT_SERVLET_URL]   = servletUrl;
+    v[SLOT_URL_HASH]      = "";
+    v[SLOT_FORCEBOT]      = String.valueOf(forcebot);
+    v[SLOT_FORCEPROXY]    = "false";
+    v[SLOT_FORCECLIENT]   = "false";
+    v[SLOT_GOLF_VERSION]  = mAppVersion;
+
+    return page.render(v);
   }
 
   /**
@@ -547,13 +1016,11 @@ public class GolfServlet extends HttpServlet {
     try {
       PrintWriter out = context.response.getWriter();
 
-      String errHtml = 
-        mErrorPage.replaceAll("<%error%>", HTMLEntityEncode(e.getMessage()));
-
       context.response.setStatus(status);
       context.response.setContentType("text/html");
 
-      out.print(errHtml);
+      mStatic.errorPage.render(out,
+          new String[] { HTMLEntityEncode(e.getMessage()) });
     } catch (Exception x) {
       x.printStackTrace();
     }
@@ -578,6 +1045,30 @@ public class GolfServlet extends HttpServlet {
     String      lastTarget  = context.s.getLastTarget();
     String      lastUrl     = context.s.getLastUrl();
 
+    // a session without a jsvm would just get a freshly booted one, which
+    // renders the same page for everybody, so use the shared snapshot
+    String      snapKey = null;
+
+    if (mSnapshots != null && client == null && result == null
+        && !context.hasEvent() && lastEvent == null
+        && context.request.getQueryString() == null
+        && context.request.getMethod().equals("GET")) {
+      snapKey = SnapshotCache.key(context.servletUrl, path,
+          context.s.getForceBot().booleanValue(),
+          context.request.isRequestedSessionIdFromCookie(), mAppVersion);
+
+      String html = mSnapshots.get(snapKey);
+
+      if (html != null) {
+        log(context, LOG_DEBUG, "SNAPSHOT HIT ("+mSnapshots.getHits()+
+            " hits, "+mSnapshots.getMisses()+" misses)");
+        context.s.setLastUrl(null);
+        sendResponse(context, html.replace(SNAPSHOT_SESSID, sid), 
+            "text/html", false);
+        return;
+      }
+    }
+
     context.jsvm.lastPage = null;
     context.s.setLastEvent(null);
     context.s.setLastTarget(null);
@@ -585,6 +1076,13 @@ public class GolfServlet extends HttpServlet {
 
     if (result == null || !path.equals(lastUrl)) {
       if (lastEvent == null || lastTarget == null || !path.equals(lastUrl)) {
+        // a session that was sent a snapshot has no jsvm yet, so boot one
+        // on the page the event came from before handling the event
+        if (event != null && target != null && client == null) {
+          bootJsvm(context, sid);
+          client = context.jsvm.client;
+        }
+
         if (event != null && target != null && client != null) {
 
           // update last access time
@@ -618,41 +1116,8 @@ public class GolfServlet extends HttpServlet {
             lastUrl     = context.s.getLastUrl();
           }
         } else if (client == null) {
-          log(context, LOG_INFO, "*** INITIALIZING NEW CLIENT ***");
-          log(context, LOG_INFO, "Running JSVMs, before GC: " + mJsvms.size());
-
-          createNewJsvm(context);
-
-          log(context, LOG_INFO, "Running JSVMs, after GC:  " + mJsvms.size());
-
+          result = bootJsvm(context, sid);
           client = context.jsvm.client;
-
-          // write any alert() calls to the log
-          client.setAlertHandler(new AlertHandler() {
-            public void handleAlert(Page page, String message) {
-              System.err.println("ALERT: " + message);
-            }
-          });
-
-          // if this isn't long enough it'll timeout before all ajax is complete
-          client.setJavaScriptTimeout(JSVM_TIMEOUT);
-
-          // the blank skeleton html template
-          String newHtml = mNewHtml;
-
-          // do not pass query string to the app, as those parameters are meant
-          // only for the golf container itself.
-
-          StringWebResponse response = new StringWebResponse(
-            preprocess(newHtml, context, true),
-            new URL(context.servletUrl + "#" + context.urlHash)
-          );
-
-          // run it through htmlunit
-          result = (HtmlPage) context.jsvm.client.loadWebResponseInto(
-            response,
-            client.getCurrentWindow()
-          );
         } else {
           String script = "jQuery.address.value('"+context.urlHash+"');";
           result = (HtmlPage) client.getCurrentWindow().getEnclosedPage();
@@ -718,8 +1183,85 @@ public class GolfServlet extends HttpServlet {
       ")"
     );
               
-    String html = preprocess(result.asXml(), context, false);
-    sendResponse(context, html, "text/html", false);
+    String page = result.asXml();
+
+    if (snapKey != null) {
+      StringWriter buf = new StringWriter(page.length());
+      writeProxied(page, context, buf);
+      String html = buf.toString();
+
+      // the session id only turns up in links encoded for cookieless clients
+      mSnapshots.put(snapKey, html.replace(sid, SNAPSHOT_SESSID));
+
+      sendResponse(context, html, "text/html", false);
+    } else {
+      String      coding  = negotiateEncoding(context, "text/html",
+                              page.length());
+      PrintWriter out     = startResponse(context, "text/html", false, coding);
+      writeProxied(page, context, out);
+      finishResponse(context, out);
+    }
+  }
+
+  /**
+   * Give the session a jsvm, from the pool or freshly booted, with the
+   * app loaded at the requested url.
+   *
+   * @param   context       the golf context for this request
+   * @param   sid           the session id
+   * @return                the page loaded in the jsvm
+   */
+  private HtmlPage bootJsvm(GolfContext context, String sid)
+      throws IOException, ServletException {
+    HtmlPage result;
+
+    log(context, LOG_INFO, "*** INITIALIZING NEW CLIENT ***");
+    log(context, LOG_INFO, "Running JSVMs, before GC: " + mJsvms.size());
+
+    boolean pooled = createNewJsvm(context);
+
+    log(context, LOG_INFO, "Running JSVMs, after GC:  " + mJsvms.size());
+
+    WebClient client = context.jsvm.client;
+
+    if (pooled) {
+      // the skeleton is already loaded, just hand it this session
+      String script = 
+        "jQuery.golf.sessionid='"+jsStringEncode(sid)+"';" +
+        "jQuery.golf.forceproxy="+context.s.getForceProxy()+";" +
+        "jQuery.golf.forceclient="+context.s.getForceClient()+";" +
+        "jQuery.golf.urlHash='"+jsStringEncode(context.urlHash)+"';" +
+        "jQuery.address.value('"+jsStringEncode(context.urlHash)+"');";
+      result = (HtmlPage) client.getCurrentWindow().getEnclosedPage();
+      result.executeJavaScript(script);
+    } else {
+      // write any alert() calls to the log
+      client.setAlertHandler(new AlertHandler() {
+        public void handleAlert(Page page, String message) {
+          System.err.println("ALERT: " + message);
+        }
+      });
+
+      // if this isn't long enough it'll timeout before all ajax is complete
+      client.setJavaScriptTimeout(JSVM_TIMEOUT);
+
+      // do not pass query string to the app, as those parameters are meant
+      // only for the golf container itself.
+
+      // no dtd for serverside because it breaks the xml parser
+      StringWebResponse response = new StringWebResponse(
+        mStatic.newHtml.render(skeletonValues(context, true)),
+        new URL(context.servletUrl + "#" + context.urlHash)
+      );
+
+      // run it through htmlunit
+      result = (HtmlPage) context.jsvm.client.loadWebResponseInto(
+        response,
+        client.getCurrentWindow()
+      );
+    }
+
+    return result;
   }
 
   /**
@@ -729,22 +1271,42 @@ public class GolfServlet extends HttpServlet {
    */
   private void doNoProxy(GolfContext context) throws Exception {
     // the blank skeleton html template
-    String html = (context.s.getForceClient() ? mNewHtmlFc : mNewHtml);
-    sendResponse(context, preprocess(html, context, false), "text/html", true);
+    StaticFiles  files  = mStatic;
+    HtmlTemplate tpl    = (context.s.getForceClient() ? files.newHtmlFc
+                                                      : files.newHtml);
+    String[]     values = skeletonValues(context, false);
+    String       coding = negotiateEncoding(context, "text/html",
+                            tpl.length());
+
+    // the values are this session's, so the template's time says nothing
+    // about whether the client's copy is current: only the etag does
+    if (isNotModified(context, ContentEncoding.etag(tpl.etag(values), coding),
+          -1L)) {
+      sendNotModified(context);
+      return;
+    }
+
+    // and they mustn't end up in a shared cache
+    PrintWriter out = startResponse(context, "text/html", true, coding);
+    context.response.setHeader("Cache-Control", "max-age=3600,private");
+    writeSkeleton(tpl, values, out);
+    finishResponse(context, out);
   }
 
   /**
-   * First clean out any old JSVMs that might be hanging around, then 
-   * make sure there is room for another jsvm.
+   * Make sure there is room for another jsvm, evicting the least recently
+   * used idle one if the pool is full. A pre-booted jsvm is taken from the
+   * pool when one is available.
+   *
+   * @param   context       the golf context for this request
+   * @return                whether the jsvm came from the pool (and so
+   *                        already has the skeleton page loaded)
    */
-  private void createNewJsvm(GolfContext context) throws ServletException {
+  private boolean createNewJsvm(GolfContext context) throws ServletException {
     int   psize = Integer.parseInt(mPoolSize);
-    long  ptime = Long.parseLong(mPoolExpire) * 1000L; // convert sec --> msec
-    long  ctime = (new Date()).getTime();
+    String sid  = context.request.getSession().getId();
 
-    for (String key : mJsvms.keySet())
-      if (ctime - mJsvms.get(key).lastAccessTime > ptime)
-        mJsvms.remove(key);
+    while (mJsvms.size() >= psize && evictLruJsvm(sid));
 
     if (mJsvms.size() >= psize) {
       throw new ServletException(
@@ -754,8 +1316,92 @@ public class GolfServlet extends HttpServlet {
       );
     }
 
-    context.jsvm.client = new WebClient(context.browser);
+    WebClient pooled = null;
+
+    if (mPool != null) {
+      boolean forcebot = context.s.getForceBot().booleanValue();
+      pooled = mPool.checkout(
+          context.servletUrl,
+          forcebot,
+          preprocessPooled(mStatic.newHtml, context.servletUrl, forcebot),
+          mJsvms.size()
+      );
+    }
+
+    context.jsvm.client = 
+      (pooled != null ? pooled : new WebClient(context.browser));
     mJsvms.put(context.request.getSession().getId(), context.jsvm);
+
+    return pooled != null;
+  }
+
+  /**
+   * Drop jsvms that have been idle for longer than the pool expire time.
+   * This runs periodically on the reaper thread.
+   */
+  private static void reapJsvms() {
+    long  ptime = Long.parseLong(mPoolExpire) * 1000L; // convert sec --> msec
+    long  ctime = (new Date()).getTime();
+
+    for (Map.Entry<String, StoredJSVM> e : mJsvms.entrySet())
+      if (ctime - e.getValue().lastAccessTime > ptime)
+        disposeJsvm(e.getKey(), e.getValue());
+  }
+
+  /**
+   * Drop the least recently used jsvm to make room for a new one. Jsvms
+   * accessed within the last JSVM_TIMEOUT msec might still be running a
+   * request, so they are never evicted.
+   *
+   * @param   sid           the session id the room is being made for
+   * @return                whether a jsvm was evicted
+   */
+  private static boolean evictLruJsvm(String sid) {
+    long    ctime   = (new Date()).getTime();
+    String  lruKey  = null;
+    StoredJSVM lru  = null;
+
+    for (Map.Entry<String, StoredJSVM> e : mJsvms.entrySet()) {
+      StoredJSVM jsvm = e.getValue();
+      if (e.getKey().equals(sid) || ctime - jsvm.lastAccessTime < JSVM_TIMEOUT)
+        continue;
+      if (lru == null || jsvm.lastAccessTime < lru.lastAccessTime) {
+        lruKey  = e.getKey();
+        lru     = jsvm;
+      }
+    }
+
+    return lru != null && disposeJsvm(lruKey, lru);
+  }
+
+  /**
+   * Remove a session's jsvm and release the memory held by its windows.
+   *
+   * @param   sid           the session id
+   */
+  private static void disposeJsvm(String sid) {
+    StoredJSVM jsvm = mJsvms.get(sid);
+    if (jsvm != null)
+      disposeJsvm(sid, jsvm);
+  }
+
+  /**
+   * Remove a jsvm and release the memory held by its windows, unless it
+   * has already been replaced by another thread.
+   *
+   * @param   sid           the session id
+   * @param   jsvm          the jsvm expected to be stored for the session
+   * @return                whether the jsvm was removed
+   */
+  private static boolean disposeJsvm(String sid, StoredJSVM jsvm) {
+    if (!mJsvms.remove(sid, jsvm))
+      return false;
+
+    jsvm.lastPage = null;
+    if (jsvm.client != null)
+      jsvm.client.closeAllWindows();
+
+    return true;
   }
 
   /**
@@ -765,7 +1411,12 @@ public class GolfServlet extends HttpServlet {
    */
   private void doDynamicResourceGet(GolfContext context) throws Exception {
 
-    HttpSession session     = context.request.getSession();
+    // the js detection page came back without the session cookie, so
+    // this client doesn't keep cookies; give it an HttpSession instead
+    if (mSessionCookie != null && context.s.getId() == null &&
+        context.s.isNew() && context.p.getJs() != null)
+      context.s.useHttpSession();
+
     String      remoteAddr  = context.request.getRemoteAddr();
     String      sessionAddr = context.s.getIpAddr();
     Boolean     forcebot    = context.s.getForceBot();
@@ -773,25 +1424,32 @@ public class GolfServlet extends HttpServlet {
     Boolean     forceclient = context.s.getForceClient();
     Boolean     forceParam  = context.p.getForce();
     Boolean     jsParam     = context.p.getJs();
-    String      sid         = session.getId();
     String      uagent      = context.request.getHeader("User-Agent");
 
-    if (sid == null)
-      throw new Exception("sid is null");
-
     if (Boolean.parseBoolean(mDevMode)) {
-      cacheStaticFiles();
+      if (mWatcher == null)
+        cacheStaticFiles();
+      else if (mBuildError != null)
+        throw mBuildError;
       context.s.setForceProxy(forceproxy = null);
       context.s.setForceClient(forceclient = null);
     }
 
+    // one snapshot for the whole request, even if it's reloaded meanwhile
+    StaticFiles files   = mStatic;
+    int         uaClass = 0;
+
+    // only new sessions (and everybody in devmode) need classifying
+    if (forcebot == null || forceproxy == null || forceclient == null)
+      uaClass = files.userAgents.classify(uagent);
+
     // forcebot: Match regex to user agent string.
     // If match, treat user agent as a bot (no css,
     // no presentation cruft, cleaner markup).
 
     // FIXME: store this info in session unless in devmode, maybe
     if (forcebot == null) {
-      forcebot = multipatternMatch(uagent, mForceBot);
+      forcebot = (uaClass & UserAgentClassifier.BOT) != 0;
       context.s.setForceBot(forcebot);
     }
     
@@ -802,7 +1460,7 @@ public class GolfServlet extends HttpServlet {
     // FIXME: store this info in session unless in devmode, maybe
     if (forceproxy == null) {
       if (forceproxy = 
-          (multipatternMatch(uagent, mForceProxy) || forcebot)) {
+          ((uaClass & UserAgentClassifier.PROXY) != 0 || forcebot)) {
         context.s.setJs(false);
         context.s.setSeq(1);
       }
@@ -817,7 +1475,7 @@ public class GolfServlet extends HttpServlet {
     if (forceclient == null) {
       forceclient = false;
       if (forceproxy == false) {
-        if (forceclient = multipatternMatch(uagent, mForceClient)) {
+        if (forceclient = (uaClass & UserAgentClassifier.CLIENT) != 0) {
           context.s.setJs(true);
           context.s.setSeq(1);
         }
@@ -827,7 +1485,7 @@ public class GolfServlet extends HttpServlet {
 
     Boolean forceUa = forceproxy || forceclient;
 
-    if (! session.isNew() || forceUa) {
+    if (! context.s.isNew() || forceUa) {
       if (!forceUa && forceParam != null && forceParam.booleanValue())
         context.s.setSeq(0);
 
@@ -867,39 +1525,76 @@ public class GolfServlet extends HttpServlet {
         }
       }
 
-      session.invalidate();
-      context.s = new GolfSession(context.request);
+      context.s.reset();
     }
 
     context.s.setSeq(new Integer(0));
     context.s.setIpAddr(remoteAddr);
 
-    String jsDetect = mJsDetect;
-
-    jsDetect = 
-      jsDetect.replaceAll("__HAVE_JS__", ";jsessionid="+sid+"?js=true");
-    jsDetect = 
-      jsDetect.replaceAll("__DONT_HAVE_JS__", ";jsessionid="+sid+"?js=false");
+    // no session id in the links when the state is in a cookie
+    String sid      = context.s.getId();
+    String sidParam = (sid != null ? ";jsessionid="+sid : "");
+    String jsDetect = files.jsDetect.render(new String[] {
+      sidParam+"?js=true",
+      sidParam+"?js=false"
+    });
 
     sendResponse(context, jsDetect, "text/html", false);
   }
 
-  private boolean multipatternMatch(String ua, ArrayList<String> pats) {
-    for (String i : pats)
-      if (ua.matches(i))
-        return true;
-    return false;
-  }
-
   private void sendResponse(GolfContext context, String html, 
       String contentType, boolean canCache) throws IOException {
-    context.response.setContentType(contentType);
+    String      coding  = negotiateEncoding(context, contentType,
+                            html.length());
+    PrintWriter out     = startResponse(context, contentType, canCache, coding);
+    out.print(html);
+    finishResponse(context, out);
+  }
+
+  /**
+   * Set up the headers for a 200 response and get the writer to render
+   * the body into. When a content coding is given the body is compressed
+   * as it is written.
+   *
+   * @param   context       the golf context for this request
+   * @param   contentType   the content type of the response
+   * @param   canCache      whether clients may cache the response
+   * @param   coding        the content coding from negotiateEncoding()
+   * @return                the response writer
+   */
+  private PrintWriter startResponse(GolfContext context, String contentType,
+      boolean canCache, String coding) throws IOException {
+    HttpServletResponse res = context.response;
+
+    res.setContentType(contentType);
 
     if (canCache)
       setCachable(context);
 
-    PrintWriter out = context.response.getWriter();
-    out.print(html);
+    // the session cookie is this client's alone, so don't let shared
+    // caches keep it
+    if (context.s.flush() && canCache)
+      res.setHeader("Cache-Control", "max-age=3600,private");
+
+    if (coding == null)
+      return res.getWriter();
+
+    res.setHeader("Content-Encoding", coding);
+
+    OutputStream out =
+      ContentEncoding.wrap(res.getOutputStream(), coding, mGzipLevel);
+
+    return new PrintWriter(
+        new OutputStreamWriter(out, res.getCharacterEncoding()));
+  }
+
+  /**
+   * Finish a response started with startResponse().
+   *
+   * @param   context       the golf context for this request
+   * @param   out           the response writer
+   */
+  private void finishResponse(GolfContext context, PrintWriter out) {
     out.close();
     logResponse(context, 200);
   }
@@ -926,20 +1621,332 @@ public class GolfServlet extends HttpServlet {
     if (! path.startsWith("/"))
       path = "/" + path;
 
-    GolfResource res = new GolfResource(getServletContext(), path);
+    ResourceCache.Entry res   = mResources.get(path);
+    boolean             gzip  = res.gzipped != null &&
+      ContentEncoding.negotiate(context.request.getHeader("Accept-Encoding"),
+                                false) != null;
+    byte[]              body  = (gzip ? res.gzipped : res.bytes);
 
-    context.response.setContentType(res.getMimeType());
     setCachable(context);
 
-    if (res.getMimeType().startsWith("text/")) {
-      PrintWriter out = context.response.getWriter();
-      out.print(res.toString());
-    } else {
-      OutputStream out = context.response.getOutputStream();
-      out.write(res.toByteArray());
+    if (res.gzipped != null)
+      context.response.setHeader("Vary", "Accept-Encoding");
+
+    if (isNotModified(context, (gzip ? res.gzippedEtag : res.etag),
+          res.lastModified)) {
+      sendNotModified(context);
+      return;
     }
 
-    logResponse(context, 200);
+    context.response.setContentType(res.mimeType);
+
+    if (gzip)
+      context.response.setHeader("Content-Encoding", "gzip");
+
+    sendBody(context, res, body, (gzip ? res.gzippedEtag : res.etag));
+  }
+
+  /**
+   * Send the body of a static resource, or the parts of it asked for in a
+   * Range header. Big resources whose bytes aren't in memory are sent from
+   * their file through a channel so they never have to be read onto the
+   * heap.
+   *
+   * @param   context       the golf context for this request
+   * @param   res           the resource
+   * @param   body          the bytes of the representation being sent, or
+   *                        null to send the resource's file
+   * @param   etag          the ETag of the representation being sent
+   */
+  private void sendBody(GolfContext context, ResourceCache.Entry res,
+      byte[] body, String etag) throws IOException {
+    HttpServletRequest  request   = context.request;
+    HttpServletResponse response  = context.response;
+    long                length    = (body != null ? body.length : res.length);
+    ArrayList<long[]>   ranges    = null;
+    int                 status    = HttpServletResponse.SC_OK;
+
+    response.setHeader("Accept-Ranges", "bytes");
+
+    if (ifRangeMatches(request, etag, validatorTime(res.lastModified)))
+      ranges = parseRanges(request.getHeader("Range"), length);
+
+    if (ranges != null && ranges.isEmpty()) {
+      status = HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
+      response.setHeader("Content-Range", "bytes */" + length);
+      response.setStatus(status);
+      logResponse(context, status);
+      return;
+    }
+
+    FileInputStream in  = null;
+    FileChannel     src = null;
+
+    try {
+      if (body == null) {
+        in  = new FileInputStream(res.file);
+        src = in.getChannel();
+      }
+
+      OutputStream out = response.getOutputStream();
+
+      if (ranges == null) {
+        // setContentLength() only takes an int
+        response.setHeader("Content-Length", String.valueOf(length));
+        writeRange(out, body, src, 0L, length, res.path);
+      } else if (ranges.size() == 1) {
+        long[] r = ranges.get(0);
+
+        status = HttpServletResponse.SC_PARTIAL_CONTENT;
+        response.setStatus(status);
+        response.setHeader("Content-Range",
+            "bytes " + r[0] + "-" + r[1] + "/" + length);
+        response.setHeader("Content-Length", String.valueOf(r[1] - r[0] + 1));
+        writeRange(out, body, src, r[0], r[1] + 1, res.path);
+      } else {
+        String    boundary  = Long.toHexString(mRandom.nextLong());
+        String[]  heads     = new String[ranges.size()];
+        String    tail      = "\r\n--" + boundary + "--\r\n";
+        long      total     = tail.length();
+
+        for (int i=0; i<heads.length; i++) {
+          long[] r = ranges.get(i);
+          heads[i] =
+            "\r\n--" + boundary + "\r\n" +
+            "Content-Type: " + res.mimeType + "\r\n" +
+            "Content-Range: bytes " + r[0] + "-" + r[1] + "/" + length +
+            "\r\n\r\n";
+          total += heads[i].length() + r[1] - r[0] + 1;
+        }
+
+        status = HttpServletResponse.SC_PARTIAL_CONTENT;
+        response.setStatus(status);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setHeader("Content-Length", String.valueOf(total));
+
+        for (int i=0; i<heads.length; i++) {
+          long[] r = ranges.get(i);
+          out.write(heads[i].getBytes("US-ASCII"));
+          writeRange(out, body, src, r[0], r[1] + 1, res.path);
+        }
+        out.write(tail.getBytes("US-ASCII"));
+      }
+    } finally {
+      if (in != null)
+        in.close();
+    }
+
+    logResponse(context, status);
+  }
+
+  /**
+   * Write part of a resource body.
+   *
+   * @param   out           the response stream
+   * @param   body          the body bytes, or null to read from src
+   * @param   src           the resource file, when body is null
+   * @param   start         the first byte to write
+   * @param   end           one past the last byte to write
+   * @param   path          the resource path, for error messages
+   */
+  private static void writeRange(OutputStream out, byte[] body,
+      FileChannel src, long start, long end, String path) throws IOException {
+    if (body != null) {
+      out.write(body, (int) start, (int) (end - start));
+      return;
+    }
+
+    WritableByteChannel dst = Channels.newChannel(out);
+
+    while (start < end) {
+      long n = src.transferTo(start, end - start, dst);
+      if (n <= 0)
+        throw new IOException("file shrank while sending: " + path);
+      start += n;
+    }
+  }
+
+  /**
+   * Check an If-Range header against the current validators. A range
+   * request only gets a partial response if the client's copy is the
+   * same as ours; otherwise it gets the whole thing.
+   *
+   * @param   request       the request
+   * @param   etag          the ETag of the representation
+   * @param   lastModified  the Last-Modified time sent with it
+   * @return                true if the Range header should be honored
+   */
+  private static boolean ifRangeMatches(HttpServletRequest request,
+      String etag, long lastModified) {
+    String header = request.getHeader("If-Range");
+
+    if (header == null)
+      return true;
+
+    header = header.trim();
+
+    // weak validators never match here
+    if (header.startsWith("\"") || header.startsWith("W/"))
+      return header.equals(etag);
+
+    try {
+      return request.getDateHeader("If-Range") == lastModified;
+    } catch (IllegalArgumentException e) {
+      // unparseable date, so it can't match
+      return false;
+    }
+  }
+
+  /**
+   * Parse a Range request header. Ranges that start past the end of the
+   * resource are dropped; the rest are clipped to it.
+   *
+   * @param   header        the Range header, or null
+   * @param   length        the length of the representation
+   * @return                the first and last byte positions (inclusive)
+   *                        of each range, an empty list if none of them
+   *                        can be satisfied, or null to send the whole
+   *                        representation
+   */
+  private static ArrayList<long[]> parseRanges(String header, long length) {
+    if (header == null || !header.startsWith("bytes="))
+      return null;
+
+    String[]          specs   = header.substring(6).split(",");
+    ArrayList<long[]> ranges  = new ArrayList<long[]>();
+
+    // lots of little ranges cost more than they save
+    if (specs.length > MAX_RANGES)
+      return null;
+
+    try {
+      for (String spec : specs) {
+        spec = spec.trim();
+
+        int dash = spec.indexOf('-');
+        if (dash == -1)
+          return null;
+
+        String  a = spec.substring(0, dash).trim();
+        String  b = spec.substring(dash + 1).trim();
+        long    first, last;
+
+        if (a.length() == 0) {
+          // suffix range: the last so many bytes
+          long n = Long.parseLong(b);
+          if (n <= 0L || length == 0L)
+            continue;
+          first = Math.max(0L, length - n);
+          last  = length - 1;
+        } else {
+          first = Long.parseLong(a);
+          last  = (b.length() == 0 ? Long.MAX_VALUE : Long.parseLong(b));
+          if (first < 0L || last < first)
+            return null;
+          if (first >= length)
+            continue;
+          last  = Math.min(last, length - 1);
+        }
+
+        ranges.add(new long[] { first, last });
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+
+    return ranges;
+  }
+
+  /**
+   * Set the validators for a response and check them against the
+   * request's conditional headers. If-None-Match wins over
+   * If-Modified-Since when both are present.
+   *
+   * @param   context       the golf context for this request
+   * @param   etag          the strong ETag of the response body
+   * @param   lastModified  when the response body last changed, zero if
+   *                        it hasn't changed since the servlet started, or
+   *                        negative to go by the ETag alone
+   * @return                true if the client's copy is current
+   */
+  private boolean isNotModified(GolfContext context, String etag,
+      long lastModified) {
+    HttpServletRequest  req = context.request;
+    HttpServletResponse res = context.response;
+
+    res.setHeader("ETag", etag);
+    if (lastModified >= 0L) {
+      lastModified = validatorTime(lastModified);
+      res.setDateHeader("Last-Modified", lastModified);
+    }
+
+    String inm = req.getHeader("If-None-Match");
+    if (inm != null) {
+      for (String tag : inm.split(",")) {
+        tag = tag.trim();
+        if (tag.startsWith("W/"))
+          tag = tag.substring(2);
+        if (tag.equals(etag) || tag.equals("*"))
+          return true;
+      }
+      return false;
+    }
+
+    if (lastModified < 0L)
+      return false;
+
+    try {
+      long ims = req.getDateHeader("If-Modified-Since");
+      return ims != -1L && lastModified <= ims;
+    } catch (IllegalArgumentException e) {
+      // unparseable date, ignore it
+      return false;
+    }
+  }
+
+  /**
+   * The Last-Modified time to send for something.
+   *
+   * @param   lastModified  when it last changed, or zero if it hasn't
+   *                        changed since the servlet started
+   * @return                the time, truncated to a whole second since
+   *                        http dates have one second resolution
+   */
+  private static long validatorTime(long lastModified) {
+    lastModified = (lastModified > 0L ? lastModified : mStartTime);
+    return lastModified - (lastModified % 1000L);
+  }
+
+  /**
+   * Send a 304 NOT MODIFIED response (validators are already set).
+   *
+   * @param   context       the golf context for this request
+   */
+  private void sendNotModified(GolfContext context) {
+    context.s.flush();
+    context.response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    logResponse(context, 304);
+  }
+
+  /**
+   * Pick the content coding for a dynamic response. Responses that are
+   * too small or not text are never compressed; for the others the Vary
+   * header is set, since the body depends on Accept-Encoding.
+   *
+   * @param   context       the golf context for this request
+   * @param   contentType   the content type of the response
+   * @param   size          about how big the response will be (chars)
+   * @return                the content coding, or null for none
+   */
+  private String negotiateEncoding(GolfContext context, String contentType,
+      int size) {
+    if (size < mGzipMinSize || !ContentEncoding.isCompressible(contentType))
+      return null;
+
+    context.response.setHeader("Vary", "Accept-Encoding");
+
+    return ContentEncoding.negotiate(
+        context.request.getHeader("Accept-Encoding"), true);
   }
 
   /**
@@ -954,7 +1961,8 @@ public class GolfServlet extends HttpServlet {
     String ip  = null;
 
     if (context != null) {
-      sid = context.request.getSession().getId();
+      HttpSession sess = context.request.getSession(false);
+      sid = (sess != null ? sess.getId() : null);
       ip  = context.request.getRemoteHost();
     }
 
@@ -988,7 +1996,6 @@ public class GolfServlet extends HttpServlet {
     String path   = context.urlHash;
     String query  = context.request.getQueryString();
     String host   = context.request.getRemoteHost();
-    String sid    = context.request.getSession().getId();
     String uagent = context.request.getHeader("User-Agent");
 
     String line   = method + " " + path + (query != null ? "?" + query : "");
@@ -1017,7 +2024,6 @@ public class GolfServlet extends HttpServlet {
     String path   = context.urlHash;
     String query  = context.request.getQueryString();
     String host   = context.request.getRemoteHost();
-    String sid    = context.request.getSession().getId();
 
     String line   = method + " " + path + (query != null ? "?" + query : "");
 
@@ -1046,6 +2052,32 @@ public class GolfServlet extends HttpServlet {
     return buf.toString();
   }
 
+  /**
+   * Escape a string to go between single quotes in javascript.
+   *
+   * @param     s         the string to encode
+   * @return              the encoded string
+   */
+  public static String jsStringEncode(String s) {
+    StringBuffer buf = new StringBuffer();
+    int len = (s == null ? -1 : s.length());
+
+    for ( int i = 0; i < len; i++ ) {
+      char c = s.charAt( i );
+      if ( c=='\\' || c=='\'' ) {
+        buf.append('\\').append( c );
+      } else if ( c=='\n' ) {
+        buf.append("\\n");
+      } else if ( c=='\r' ) {
+        buf.append("\\r");
+      } else {
+        buf.append( c );
+      }
+    }
+
+    return buf.toString();
+  }
+
   /**
    *
    */
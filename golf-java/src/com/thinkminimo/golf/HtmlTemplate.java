@@ -0,0 +1,157 @@
+package com.thinkminimo.golf;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * A text template with placeholder slots (like __SESSID__). The template
+ * is split up once, when it's loaded, so rendering is a single pass that
+ * writes literal chunks and slot values straight to the output.
+ */
+public class HtmlTemplate {
+
+  private final String[]  mMarkers;
+  private final String[]  mChunks;
+  private final int[]     mSlots;
+  private final int       mLength;
+  private final String    mVersion;
+  private final long      mLastModified;
+
+  /**
+   * Constructor.
+   *
+   * @param       text        the template text
+   * @param       markers     the placeholder strings; the index of a marker
+   *                          in this array is its slot number
+   */
+  public HtmlTemplate(String text, String[] markers) {
+    this(text, markers, 0L);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param       text          the template text
+   * @param       markers       the placeholder strings; the index of a
+   *                            marker in this array is its slot number
+   * @param       lastModified  when the template source last changed
+   */
+  public HtmlTemplate(String text, String[] markers, long lastModified) {
+    ArrayList<String>   chunks  = new ArrayList<String>();
+    ArrayList<Integer>  slots   = new ArrayList<Integer>();
+    int                 pos     = 0;
+
+    while (true) {
+      int slot  = -1;
+      int at    = text.length();
+
+      for (int i=0; i<markers.length; i++) {
+        int j = text.indexOf(markers[i], pos);
+        if (j != -1 && j < at) {
+          slot  = i;
+          at    = j;
+        }
+      }
+
+      if (slot == -1)
+        break;
+
+      chunks.add(text.substring(pos, at));
+      slots.add(slot);
+      pos = at + markers[slot].length();
+    }
+
+    chunks.add(text.substring(pos));
+
+    mMarkers  = markers.clone();
+    mChunks   = chunks.toArray(new String[chunks.size()]);
+    mSlots    = new int[slots.size()];
+    mLength   = text.length();
+    mVersion  = DigestUtils.md5Hex(text);
+
+    mLastModified = lastModified;
+
+    for (int i=0; i<mSlots.length; i++)
+      mSlots[i] = slots.get(i);
+  }
+
+  /**
+   * @return                  a hash of the template text
+   */
+  public String getVersion() {
+    return mVersion;
+  }
+
+  /**
+   * @return                  the length of the template text, which is
+   *                          roughly the length of a rendered page
+   */
+  public int length() {
+    return mLength;
+  }
+
+  /**
+   * @return                  when the template source last changed, or
+   *                          zero if that isn't known
+   */
+  public long getLastModified() {
+    return mLastModified;
+  }
+
+  /**
+   * Compute a strong ETag for the template rendered with some values,
+   * without rendering it.
+   *
+   * @param       values      the slot values, indexed by slot number
+   * @return                  the quoted ETag
+   */
+  public String etag(String[] values) {
+    StringBuilder key = new StringBuilder(mVersion);
+    for (String v : values)
+      key.append('\0').append(v);
+    return "\"" + DigestUtils.md5Hex(key.toString()) + "\"";
+  }
+
+  /**
+   * Write the template to a writer.
+   *
+   * @param       out         where to write the rendered template
+   * @param       values      the slot values, indexed by slot number; a
+   *                          null value leaves the marker in place
+   */
+  public void render(Writer out, String[] values) throws IOException {
+    for (int i=0; i<mSlots.length; i++) {
+      String value = values[mSlots[i]];
+      out.write(mChunks[i]);
+      out.write(value != null ? value : mMarkers[mSlots[i]]);
+    }
+    out.write(mChunks[mSlots.length]);
+  }
+
+  /**
+   * Render the template to a string.
+   *
+   * @param       values      the slot values, indexed by slot number
+   * @return                  the rendered template
+   */
+  public String render(String[] values) {
+    StringWriter out = new StringWriter(mLength + 256);
+    try {
+      render(out, values);
+    } catch (IOException e) {
+      // StringWriter doesn't do this
+    }
+    return out.toString();
+  }
+
+  /**
+   * @return                  the template with all markers left in place
+   */
+  public String toString() {
+    return render(new String[mMarkers.length]);
+  }
+}
@@ -0,0 +1,209 @@
+package com.thinkminimo.golf;
+
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.gargoylesoftware.htmlunit.*;
+
+/**
+ * A pool of pre-booted proxymode client virtual machines. Each idle client
+ * already has the skeleton page loaded and the framework scripts evaluated,
+ * so binding it to a new session only needs a few lines of javascript
+ * instead of a full page load.
+ *
+ * Clients are grouped by servlet url and bot mode, because both of those
+ * affect how the framework scripts initialize themselves.
+ */
+public class JSVMPool {
+
+  /**
+   * The idle clients for one (servlet url, bot mode) combination.
+   */
+  private static class Slot {
+    public final String                         servletUrl;
+    public final String                         html;
+    public final ConcurrentLinkedQueue<WebClient> idle;
+    public final AtomicInteger                  pending;
+
+    Slot(String servletUrl, String html) {
+      this.servletUrl = servletUrl;
+      this.html       = html;
+      this.idle       = new ConcurrentLinkedQueue<WebClient>();
+      this.pending    = new AtomicInteger();
+    }
+  }
+
+  private final ConcurrentHashMap<String, Slot> mSlots =
+    new ConcurrentHashMap<String, Slot>();
+
+  private final BrowserVersion  mBrowser;
+  private final int             mMinIdle;
+  private final int             mMaxTotal;
+  private final long            mJsTimeout;
+  private final ExecutorService mFiller;
+  private final AtomicInteger   mIdleCount    = new AtomicInteger();
+  private volatile int          mActiveCount  = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param       browser     the browser the clients should emulate
+   * @param       minIdle     idle clients to keep booted per slot
+   * @param       maxTotal    upper bound on idle plus active clients
+   * @param       jsTimeout   javascript timeout for the clients (msec)
+   */
+  public JSVMPool(BrowserVersion browser, int minIdle, int maxTotal,
+      long jsTimeout) {
+    mBrowser    = browser;
+    mMinIdle    = minIdle;
+    mMaxTotal   = maxTotal;
+    mJsTimeout  = jsTimeout;
+    mFiller     = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "golf-jsvm-pool");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Take a booted client out of the pool and schedule a refill.
+   *
+   * @param       servletUrl  the servlet url the skeleton was loaded from
+   * @param       forcebot    whether the client is for a bot session
+   * @param       html        the serverside skeleton html
+   * @param       active      number of clients currently bound to sessions
+   * @return                  a booted client, or null if none is available
+   */
+  public WebClient checkout(String servletUrl, boolean forcebot, String html,
+      int active) {
+    mActiveCount = active;
+
+    if (mMinIdle <= 0)
+      return null;
+
+    Slot      slot    = getSlot(servletUrl, forcebot, html);
+    WebClient client  = slot.idle.poll();
+
+    if (client != null)
+      mIdleCount.decrementAndGet();
+
+    fill(slot);
+    return client;
+  }
+
+  /**
+   * Stop the filler thread and release all idle clients.
+   */
+  public void close() {
+    mFiller.shutdownNow();
+    for (Slot slot : mSlots.values())
+      drain(slot);
+    mSlots.clear();
+  }
+
+  /**
+   * @return                  the number of booted clients waiting in the pool
+   */
+  public int getIdleCount() {
+    return mIdleCount.get();
+  }
+
+  /**
+   * Find the slot for a servlet url and bot mode, replacing it when the
+   * skeleton html has changed (devmode recompiles, for instance).
+   */
+  private Slot getSlot(String servletUrl, boolean forcebot, String html) {
+    String  key   = servletUrl + "|" + forcebot;
+    Slot    slot  = mSlots.get(key);
+
+    if (slot != null && slot.html.equals(html))
+      return slot;
+
+    Slot fresh = new Slot(servletUrl, html);
+
+    if (slot == null) {
+      slot = mSlots.putIfAbsent(key, fresh);
+      return (slot == null ? fresh : slot);
+    }
+
+    if (mSlots.replace(key, slot, fresh))
+      drain(slot);
+
+    return mSlots.get(key);
+  }
+
+  /**
+   * Queue up enough background boots to bring a slot back to min-idle.
+   */
+  private void fill(final Slot slot) {
+    while (slot.idle.size() + slot.pending.get() < mMinIdle &&
+        mIdleCount.get() + slot.pending.get() + mActiveCount < mMaxTotal) {
+      slot.pending.incrementAndGet();
+      try {
+        mFiller.execute(new Runnable() {
+          public void run() {
+            try {
+              WebClient client = boot(slot);
+              if (mSlots.containsValue(slot)) {
+                slot.idle.add(client);
+                mIdleCount.incrementAndGet();
+              } else {
+                client.closeAllWindows();
+              }
+            } catch (Exception e) {
+              System.err.println("golf: can't boot pooled jsvm: " + e);
+            } finally {
+              slot.pending.decrementAndGet();
+            }
+          }
+        });
+      } catch (Exception e) {
+        // filler was shut down
+        slot.pending.decrementAndGet();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Close all of the idle clients in a slot.
+   */
+  private void drain(Slot slot) {
+    WebClient client;
+    while ((client = slot.idle.poll()) != null) {
+      mIdleCount.decrementAndGet();
+      client.closeAllWindows();
+    }
+  }
+
+  /**
+   * Create a new client and load the skeleton page into it.
+   */
+  private WebClient boot(Slot slot) throws Exception {
+    WebClient client = new WebClient(mBrowser);
+
+    // write any alert() calls to the log
+    client.setAlertHandler(new AlertHandler() {
+      public void handleAlert(Page page, String message) {
+        System.err.println("ALERT: " + message);
+      }
+    });
+
+    // if this isn't long enough it'll timeout before all ajax is complete
+    client.setJavaScriptTimeout(mJsTimeout);
+
+    StringWebResponse response =
+      new StringWebResponse(slot.html, new URL(slot.servletUrl + "#"));
+
+    client.loadWebResponseInto(response, client.getCurrentWindow());
+
+    return client;
+  }
+}
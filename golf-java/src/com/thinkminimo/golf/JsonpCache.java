@@ -0,0 +1,171 @@
+package com.thinkminimo.golf;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Cache of the responses the JSONP tunnel gets from external urls.
+ * Entries are fresh for a fixed time after they're fetched. After that
+ * they can still be served for a while longer, as long as someone goes
+ * and fetches a new copy in the background, so that repeat queries never
+ * wait on a slow external host.
+ *
+ * The cache is bounded by a number of entries and by the total size of
+ * the bodies, and evicts the least recently used entries first.
+ */
+public class JsonpCache {
+
+  /**
+   * A cached response. The body must not be modified.
+   */
+  public static class Entry {
+    public final String   contentType;
+    public final byte[]   body;
+    public final long     fetchedAt;
+
+    private boolean       mRefreshing = false;
+
+    Entry(String contentType, byte[] body) {
+      this.contentType  = contentType;
+      this.body         = body;
+      this.fetchedAt    = System.currentTimeMillis();
+    }
+  }
+
+  private final LinkedHashMap<String, Entry> mEntries =
+    new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  private final long  mTtl;
+  private final long  mStaleTtl;
+  private final int   mMaxEntries;
+  private final long  mMaxBytes;
+  private long        mBytes = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param       ttl         how long an entry is fresh (msec)
+   * @param       staleTtl    how long after that it can still be served
+   *                          while it's refreshed (msec)
+   * @param       maxEntries  the most entries to keep
+   * @param       maxBytes    the most body bytes to keep
+   */
+  public JsonpCache(long ttl, long staleTtl, int maxEntries, long maxBytes) {
+    mTtl        = ttl;
+    mStaleTtl   = staleTtl;
+    mMaxEntries = maxEntries;
+    mMaxBytes   = maxBytes;
+  }
+
+  /**
+   * Make the key for a request. The args are sorted, so the order the
+   * client sent them in doesn't matter.
+   *
+   * @param       method      the request method
+   * @param       url         the external url
+   * @param       args        the args sent to the url
+   * @return                  the key
+   */
+  public static String key(String method, String url,
+      Map<String, String> args) {
+    StringBuilder key = new StringBuilder(method).append(' ').append(url);
+
+    for (Map.Entry<String, String> arg :
+        new TreeMap<String, String>(args).entrySet())
+      key.append('\n').append(arg.getKey()).append('=').append(arg.getValue());
+
+    return key.toString();
+  }
+
+  /**
+   * Get a usable entry.
+   *
+   * @param       key         the key
+   * @return                  the entry, or null if there is none that's
+   *                          fresh or stale-but-servable
+   */
+  public synchronized Entry get(String key) {
+    Entry entry = mEntries.get(key);
+
+    if (entry != null && age(entry) >= mTtl + mStaleTtl) {
+      remove(key);
+      entry = null;
+    }
+
+    return entry;
+  }
+
+  /**
+   * @param       entry       an entry from get()
+   * @return                  whether the entry is within its ttl
+   */
+  public boolean isFresh(Entry entry) {
+    return age(entry) < mTtl;
+  }
+
+  /**
+   * Claim the job of refreshing a stale entry, so that only one request
+   * goes out for it at a time.
+   *
+   * @param       entry       an entry from get()
+   * @return                  true if the caller should refresh it
+   */
+  public synchronized boolean startRefresh(Entry entry) {
+    if (entry.mRefreshing)
+      return false;
+    entry.mRefreshing = true;
+    return true;
+  }
+
+  /**
+   * Give up on refreshing an entry, so that someone else can try.
+   *
+   * @param       entry       the entry passed to startRefresh()
+   */
+  public synchronized void endRefresh(Entry entry) {
+    entry.mRefreshing = false;
+  }
+
+  /**
+   * Store a response, replacing any entry for the key.
+   *
+   * @param       key         the key
+   * @param       contentType the content type of the response
+   * @param       body        the response body
+   */
+  public synchronized void put(String key, String contentType, byte[] body) {
+    // one entry shouldn't be able to push out everything else
+    if (body.length > mMaxBytes / 8)
+      return;
+
+    remove(key);
+    mEntries.put(key, new Entry(contentType, body));
+    mBytes += body.length;
+
+    Iterator<Entry> i = mEntries.values().iterator();
+    while (i.hasNext() && (mEntries.size() > mMaxEntries || mBytes > mMaxBytes)) {
+      mBytes -= i.next().body.length;
+      i.remove();
+    }
+  }
+
+  /**
+   * Drop every entry.
+   */
+  public synchronized void clear() {
+    mEntries.clear();
+    mBytes = 0;
+  }
+
+  private void remove(String key) {
+    Entry old = mEntries.remove(key);
+    if (old != null)
+      mBytes -= old.body.length;
+  }
+
+  private static long age(Entry entry) {
+    return System.currentTimeMillis() - entry.fetchedAt;
+  }
+}
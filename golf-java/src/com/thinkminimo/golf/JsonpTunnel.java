@@ -1,64 +1,345 @@
 package com.thinkminimo.golf;
 
-import java.io.PrintWriter;
-import java.io.InputStreamReader;
-import java.io.FileInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.FileNotFoundException;
-import java.io.BufferedReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.Hashtable;
 import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import java.net.*;
 
 import javax.servlet.*;
 import javax.servlet.http.*;
 
-import org.mortbay.log.Log;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.io.output.TeeOutputStream;
 
+/**
+ * Fetches an external url on behalf of a client and hands the body back,
+ * wrapped in a JSONP callback if the client asked for one.
+ *
+ * All tunnels share one pooled http client, so connections to the
+ * external hosts are reused. Requests are bounded by the connect and
+ * socket timeouts, by a cap on the number of requests to any one host at
+ * a time, and by a cap on the size of the response.
+ *
+ * Responses to GETs are cached (see JsonpCache) unless the external host
+ * says not to. A stale cached response is still served while a fresh copy is
+ * fetched in the background.
+ */
 public class JsonpTunnel {
 
+  public static final int DEFAULT_MAX_PER_HOST      = 8;
+  public static final int DEFAULT_CONNECT_TIMEOUT   = 5000;
+  public static final int DEFAULT_SOCKET_TIMEOUT    = 15000;
+  public static final int DEFAULT_MAX_RESPONSE_SIZE = 1024 * 1024;
+  public static final int DEFAULT_CACHE_TTL         = 60 * 1000;
+  public static final int DEFAULT_CACHE_STALE_TTL   = 10 * 60 * 1000;
+  public static final int DEFAULT_CACHE_ENTRIES     = 1000;
+  public static final int DEFAULT_CACHE_BYTES       = 16 * 1024 * 1024;
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private static final Pattern CHARSET =
+    Pattern.compile("(?i);\\s*charset=\"?([\\w.:-]+)");
+
   private final String extURLParam    = "extURL";
   private final String extMethodParam = "extMethod";
+  private final String callbackParam  = "callback";
 
   private Hashtable<String, String> extArgs = new Hashtable<String, String>();
 
   private String extMethod = "";
   private String extURLString = "";
+  private String callback = "";
 
   private HttpServletRequest request;
 
+  private static MultiThreadedHttpConnectionManager connections =
+    new MultiThreadedHttpConnectionManager();
+  private static HttpClient client = new HttpClient(connections);
+
+  private static ConcurrentHashMap<String, Semaphore> hostPermits =
+    new ConcurrentHashMap<String, Semaphore>();
+
+  private static volatile int maxPerHost      = DEFAULT_MAX_PER_HOST;
+  private static volatile int socketTimeout   = DEFAULT_SOCKET_TIMEOUT;
+  private static volatile int maxResponseSize = DEFAULT_MAX_RESPONSE_SIZE;
+
+  private static volatile JsonpCache cache = new JsonpCache(DEFAULT_CACHE_TTL,
+      DEFAULT_CACHE_STALE_TTL, DEFAULT_CACHE_ENTRIES, DEFAULT_CACHE_BYTES);
+
+  private static ExecutorService refresher =
+    Executors.newFixedThreadPool(2, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "golf-jsonp-refresh");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+  static {
+    configure(DEFAULT_MAX_PER_HOST, DEFAULT_CONNECT_TIMEOUT,
+        DEFAULT_SOCKET_TIMEOUT, DEFAULT_MAX_RESPONSE_SIZE);
+  }
+
   public JsonpTunnel(HttpServletRequest req) {
     request = req;
   }
 
-  public String execRequest() throws Exception {
+  /**
+   * Set the limits shared by all tunnels.
+   *
+   * @param       perHost         max requests to one host at a time
+   * @param       connectTimeout  connect timeout (msec)
+   * @param       soTimeout       read timeout (msec), also how long a
+   *                              request waits for its turn at a host
+   * @param       maxSize         max response body size (bytes)
+   */
+  public static synchronized void configure(int perHost, int connectTimeout,
+      int soTimeout, int maxSize) {
+    HttpConnectionManagerParams params = connections.getParams();
+
+    params.setDefaultMaxConnectionsPerHost(perHost);
+    params.setMaxTotalConnections(Math.max(perHost, 100));
+    params.setConnectionTimeout(connectTimeout);
+    params.setSoTimeout(soTimeout);
+    params.setStaleCheckingEnabled(true);
+    client.getParams().setConnectionManagerTimeout(soTimeout);
+
+    maxPerHost      = perHost;
+    socketTimeout   = soTimeout;
+    maxResponseSize = maxSize;
+
+    // hosts get permits for the new cap as they're next used
+    hostPermits.clear();
+  }
+
+  /**
+   * Set up the response cache shared by all tunnels, replacing the
+   * current one.
+   *
+   * @param       ttl         how long a response is fresh (msec)
+   * @param       staleTtl    how long after that a response is still
+   *                          served while it's refreshed (msec)
+   * @param       maxEntries  the most responses to keep, 0 for no cache
+   * @param       maxBytes    the most response bytes to keep
+   */
+  public static synchronized void configureCache(long ttl, long staleTtl,
+      int maxEntries, long maxBytes) {
+    cache = (maxEntries > 0 && maxBytes > 0)
+      ? new JsonpCache(ttl, staleTtl, maxEntries, maxBytes) : null;
+  }
+
+  /**
+   * Fetch the external url and stream its body to the response, inside
+   * the callback if there is one. Repeat GET requests are answered from
+   * the cache; POSTs always go to the external url, since repeating one
+   * (as a background refresh would) isn't safe.
+   *
+   * @param       response    the response to write to
+   */
+  public void execRequest(HttpServletResponse response) throws IOException {
+    final JsonpCache  c   = (extMethod.equals("GET") ? cache : null);
+    final String      key = JsonpCache.key(extMethod, extURLString, extArgs);
+
+    if (c != null) {
+      final JsonpCache.Entry entry = c.get(key);
 
-    URL extURL = new URL(extURLString);
-    URLConnection connection = extURL.openConnection();
-    connection.setDoOutput(true);
+      if (entry != null) {
+        if (!c.isFresh(entry) && c.startRefresh(entry)) {
+          refresher.execute(new Runnable() {
+            public void run() {
+              try {
+                refresh(c, key);
+              } finally {
+                c.endRefresh(entry);
+              }
+            }
+          });
+        }
 
-    OutputStreamWriter out = new OutputStreamWriter(connection.getOutputStream());
+        OutputStream out = startBody(response, entry.contentType);
+        out.write(entry.body);
+        endBody(out);
+        return;
+      }
+    }
+
+    URL         extURL  = new URL(extURLString);
+    HttpMethod  method  = makeMethod();
+    Semaphore   permits = permitsFor(extURL);
 
-    Enumeration keys = extArgs.keys();
-    String key = "";
-    while(keys.hasMoreElements()) {
-      key = (String)keys.nextElement();
-      out.write(key+"="+URLEncoder.encode(extArgs.get(key), "UTF-8"));
+    boolean acquired = false;
+    try {
+      acquired = permits.tryAcquire(socketTimeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
-    out.close();
+    if (!acquired) {
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+          "too many requests to " + extURL.getHost());
+      return;
+    }
+
+    try {
+      int status = client.executeMethod(method);
+
+      if (status < 200 || status >= 300) {
+        response.sendError(HttpServletResponse.SC_BAD_GATEWAY,
+            "external url answered " + status);
+        return;
+      }
+
+      Header length = method.getResponseHeader("Content-Length");
+      if (length != null && parseLong(length.getValue()) > maxResponseSize) {
+        response.sendError(HttpServletResponse.SC_BAD_GATEWAY,
+            "external response too large");
+        return;
+      }
+
+      String                contentType = contentType(method);
+      OutputStream          out         = startBody(response, contentType);
+      ByteArrayOutputStream copy        =
+        (c != null && isCacheable(method)) ? new ByteArrayOutputStream() : null;
 
-    BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-    String line, retString = "";
-    while ((line= in.readLine()) != null) {
-      retString += line;
+      copyBody(method, copy == null ? out : new TeeOutputStream(out, copy));
+      endBody(out);
+
+      if (copy != null)
+        c.put(key, contentType, copy.toByteArray());
+    } finally {
+      method.releaseConnection();
+      permits.release();
     }
+  }
+
+  /**
+   * Fetch a fresh copy of a cached response, if the host isn't busy.
+   *
+   * @param       c           the cache to put it in
+   * @param       key         the cache key
+   */
+  private void refresh(JsonpCache c, String key) {
+    HttpMethod  method  = null;
+    Semaphore   permits = null;
+
+    try {
+      permits = permitsFor(new URL(extURLString));
+      if (!permits.tryAcquire()) {
+        permits = null;
+        return;
+      }
 
-    in.close();
+      method = makeMethod();
+      int status = client.executeMethod(method);
 
-    return retString;
+      if (status >= 200 && status < 300 && isCacheable(method)) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        copyBody(method, body);
+        c.put(key, contentType(method), body.toByteArray());
+      }
+    } catch (IOException e) {
+      // the stale copy is served until a refresh works
+    } finally {
+      if (method != null)
+        method.releaseConnection();
+      if (permits != null)
+        permits.release();
+    }
+  }
+
+  /**
+   * Set the content type and write the start of the callback, if any.
+   *
+   * @param       response    the response
+   * @param       contentType the content type from contentType()
+   * @return                  the stream to write the body to
+   */
+  private OutputStream startBody(HttpServletResponse response,
+      String contentType) throws IOException {
+    response.setContentType(callback.length() > 0 ?
+        "text/javascript; charset=UTF-8" : contentType);
+    response.setHeader("X-Content-Type-Options", "nosniff");
+
+    OutputStream out = response.getOutputStream();
+
+    if (callback.length() > 0)
+      out.write((callback + "(").getBytes("UTF-8"));
+
+    return out;
+  }
+
+  /**
+   * Write the end of the callback, if any.
+   */
+  private void endBody(OutputStream out) throws IOException {
+    if (callback.length() > 0)
+      out.write(");".getBytes("UTF-8"));
+  }
+
+  /**
+   * @return the permits for requests to the host of a url
+   */
+  private static Semaphore permitsFor(URL url) {
+    String    host    = url.getHost() + ":" + url.getPort();
+    Semaphore permits = hostPermits.get(host);
+
+    if (permits == null) {
+      Semaphore newPermits = new Semaphore(maxPerHost);
+      permits = hostPermits.putIfAbsent(host, newPermits);
+      if (permits == null)
+        permits = newPermits;
+    }
+
+    return permits;
+  }
+
+  /**
+   * The content type to relay a body under when there's no callback. The
+   * body is served from the app's own origin, so it's always plain text,
+   * whatever the external host called it; anything else (html, say)
+   * would let the external host run script in the app's pages. Only the
+   * charset is kept.
+   *
+   * @return the content type
+   */
+  private static String contentType(HttpMethod method) {
+    Header  type    = method.getResponseHeader("Content-Type");
+    Matcher charset = CHARSET.matcher(type != null ? type.getValue() : "");
+    return "text/plain; charset=" + (charset.find() ? charset.group(1) : "UTF-8");
+  }
+
+  /**
+   * @return whether the external host lets its response be cached
+   */
+  private static boolean isCacheable(HttpMethod method) {
+    if (method.getResponseHeader("Set-Cookie") != null)
+      return false;
+
+    Header cc = method.getResponseHeader("Cache-Control");
+    if (cc == null)
+      return true;
+
+    String v = cc.getValue().toLowerCase();
+    return v.indexOf("no-store") == -1 && v.indexOf("no-cache") == -1 &&
+           v.indexOf("private") == -1;
   }
 
   public boolean parseArgs() {
@@ -69,18 +350,88 @@ public class JsonpTunnel {
       value = request.getParameter(name);
 
       if(name.equals(extURLParam)) {
-        extURLString = name;
+        extURLString = value;
       } else if(name.equals(extMethodParam)) {
-        extMethod = name;
+        extMethod = value.toUpperCase();
+      } else if(name.equals(callbackParam)) {
+        callback = value;
       } else {
         extArgs.put(name, value);
       }
     }
 
-    if(extURLString.equals("") || extMethod.equals("")) {
+    // only plain http(s), and only callbacks that can't inject script
+    if(!extURLString.startsWith("http://") &&
+        !extURLString.startsWith("https://"))
       return false;
-    } else {
-      return true;
+    if(!extMethod.equals("GET") && !extMethod.equals("POST"))
+      return false;
+    if(callback.length() > 0 &&
+        !callback.matches("[A-Za-z_$][\\w$]*(\\.[A-Za-z_$][\\w$]*)*"))
+      return false;
+
+    return true;
+  }
+
+  /**
+   * Build the request for the external url, with the args in the query
+   * string for a GET or the form body for a POST.
+   */
+  private HttpMethod makeMethod() throws UnsupportedEncodingException {
+    if (extMethod.equals("POST")) {
+      PostMethod post = new PostMethod(extURLString);
+      for (String key : extArgs.keySet())
+        post.addParameter(key, extArgs.get(key));
+      return post;
+    }
+
+    StringBuilder url = new StringBuilder(extURLString);
+    char          sep = (extURLString.indexOf('?') == -1 ? '?' : '&');
+
+    for (String key : extArgs.keySet()) {
+      url.append(sep)
+         .append(URLEncoder.encode(key, "UTF-8"))
+         .append('=')
+         .append(URLEncoder.encode(extArgs.get(key), "UTF-8"));
+      sep = '&';
+    }
+
+    return new GetMethod(url.toString());
+  }
+
+  /**
+   * Copy the response body, giving up if it's bigger than the limit.
+   */
+  private static void copyBody(HttpMethod method, OutputStream out)
+      throws IOException {
+    InputStream in = method.getResponseBodyAsStream();
+    if (in == null)
+      return;
+
+    byte[]  buf   = new byte[BUFFER_SIZE];
+    long    total = 0;
+    int     n;
+
+    try {
+      while ((n = in.read(buf)) != -1) {
+        total += n;
+        if (total > maxResponseSize) {
+          method.abort();
+          throw new IOException("external response bigger than " +
+              maxResponseSize + " bytes");
+        }
+        out.write(buf, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static long parseLong(String s) {
+    try {
+      return Long.parseLong(s.trim());
+    } catch (NumberFormatException e) {
+      return -1;
     }
   }
 }
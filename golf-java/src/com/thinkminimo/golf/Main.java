@@ -6,7 +6,14 @@ import org.json.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Pattern;
+import java.util.regex.Matcher;
 import java.net.URL;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -75,6 +82,12 @@ public class Main
   public    static final int          NUM_CFDOMAINS   = 1;
   public    static final int          NUM_VMPOOL      = 20;
   public    static final int          NUM_VMEXPIRE    = 10;
+  public    static final int          NUM_VMMINIDLE   = 2;
+  public    static final int          NUM_VMMAXTOTAL  = 22;
+  public    static final int          NUM_SNAPTTL     = 300;
+  public    static final int          NUM_SNAPBYTES   = 8*1024*1024;
+  public    static final int          NUM_GZIPLEVEL   = 6;
+  public    static final int          NUM_GZIPMIN     = 256;
   public    static final int          JETTY_PORT      = 4653;
   private   static final int          BUF_SIZE        = 1024;
 
@@ -111,6 +124,8 @@ public class Main
 
   private   static HashMap<String, String> mApps      = null;
   private   static HashMap<String, String> mBackends  = null;
+  private   static ExecutorService    mBuildPool      = null;
+  private   static BuildCache         mBuildCache     = null;
 
   private AWSCredentials              mAwsKeys        = null;
   private RestS3Service               mS3svc          = null;
@@ -162,6 +177,50 @@ public class Main
       "pool-expire",
       "Minimum idle time (seconds) before a proxymode client virtual "+
       "machine can be scavenged."
+    ).addOpt(
+      "pool-min-idle",
+      "How many pre-booted proxymode client virtual machines to keep ready "+
+      "for new sessions (not used in devmode)."
+    ).addOpt(
+      "pool-max-total",
+      "Upper bound on pre-booted plus in-use proxymode client virtual "+
+      "machines. The pool stops booting new ones when this is reached."
+    ).addOpt(
+      "snapshot-ttl",
+      "How long (seconds) a proxymode page rendered for a new session may be "+
+      "reused for other new sessions. Zero disables the snapshot cache "+
+      "(not used in devmode)."
+    ).addOpt(
+      "snapshot-bytes",
+      "Memory limit (bytes) for the proxymode snapshot cache."
+    ).addOpt(
+      "gzip-level",
+      "Compression level (1-9) for gzip and deflate encoded responses."
+    ).addOpt(
+      "gzip-min-size",
+      "Responses smaller than this (bytes) are sent uncompressed."
+    ).addOpt(
+      "session-cookie",
+      "Keep the javascript detection state in a signed cookie instead of "+
+      "a server session, so that any server can handle any request "+
+      "(true or false)."
+    ).addOpt(
+      "session-secret",
+      "Key (letters and digits) for signing session cookies. Every server "+
+      "in a cluster must have the same one (default is a random key)."
+    ).addOpt(
+      "watch-interval",
+      "How often (milliseconds) the devmode server checks the app for "+
+      "changes to rebuild."
+    ).addOpt(
+      "build-threads",
+      "How many components, scripts and styles to compile at once. Zero "+
+      "means one per processor."
+    ).addOpt(
+      "build-cache",
+      "Directory for keeping compiled components, scripts and styles "+
+      "between builds, so only the ones that changed are compiled again "+
+      "(default .golf-build in the app root, or 'none' for no cache)."
     ).addOpt(
       "static",
       "Destination directory for a static app deployment. Static apps are "+
@@ -200,10 +259,93 @@ public class Main
       "Parameters to add to the query string of every request sent by the "+
       "HTTP proxy to the remote host. This can be used to pass tokens that "+
       "the client shouldn't have access to, and things like that."
+    ).addOpt(
+      "proxybackends",
+      "Backend servers for the HTTP proxy to spread requests over instead "+
+      "of the proxyhost's host and port, like 'host1:8080*3,host2:8080', "+
+      "where the number after the '*' is the backend's weight (optional)."
+    ).addOpt(
+      "proxybalance",
+      "How the HTTP proxy picks a backend for a request: leastOutstanding "+
+      "or roundRobin."
+    ).addOpt(
+      "proxymaxfails",
+      "How many failed requests in a row take a backend out of rotation."
+    ).addOpt(
+      "proxyejecttime",
+      "How long (milliseconds) a backend taken out by failed requests "+
+      "stays out."
+    ).addOpt(
+      "proxyhealthpath",
+      "Path the HTTP proxy GETs on each backend to check its health "+
+      "(optional). Backends that don't answer with a 2xx or 3xx are out "+
+      "until they do."
+    ).addOpt(
+      "proxyhealthinterval",
+      "Time (milliseconds) between health checks of the backends."
     ).addOpt(
       "proxymaxupload",
       "The maximum file upload size for HTTP proxy requests (optional, in "+
-      "bytes)."
+      "bytes). When uploads are streamed it limits the whole request body."
+    ).addOpt(
+      "proxystreamupload",
+      "Pass multipart uploads through the HTTP proxy as they arrive (true) "+
+      "or parse them, keeping the files on disk, and send them on when the "+
+      "upload is complete (false)."
+    ).addOpt(
+      "proxymaxconns",
+      "The maximum number of connections the HTTP proxy keeps open to the "+
+      "remote host."
+    ).addOpt(
+      "proxymaxtotal",
+      "The maximum number of connections the HTTP proxy keeps open in all."
+    ).addOpt(
+      "proxyconnecttimeout",
+      "How long (milliseconds) the HTTP proxy waits for a connection to the "+
+      "remote host to be established."
+    ).addOpt(
+      "proxysockettimeout",
+      "How long (milliseconds) the HTTP proxy waits for data from the remote "+
+      "host."
+    ).addOpt(
+      "proxyidletimeout",
+      "How long (milliseconds) an unused connection to the remote host is "+
+      "kept open for reuse."
+    ).addOpt(
+      "proxymaxconcurrent",
+      "The maximum number of requests the HTTP proxy has waiting on the "+
+      "remote host at once. Zero means the same as proxymaxconns."
+    ).addOpt(
+      "proxyasync",
+      "Free up the server thread while the HTTP proxy waits for the remote "+
+      "host to answer GET and DELETE requests (true or false)."
+    ).addOpt(
+      "proxymaxqueued",
+      "The maximum number of asynchronous HTTP proxy requests waiting for "+
+      "their turn. More than this are turned away with a 503."
+    ).addOpt(
+      "proxyasynctimeout",
+      "How long (milliseconds) an asynchronous HTTP proxy request waits for "+
+      "the remote host before giving up with a 504."
+    ).addOpt(
+      "proxycachemem",
+      "Memory budget (bytes) for caching cacheable responses from the "+
+      "remote host in the HTTP proxy. Zero turns the memory cache off."
+    ).addOpt(
+      "proxycachedir",
+      "Directory where the HTTP proxy keeps cached responses that don't fit "+
+      "in memory (optional)."
+    ).addOpt(
+      "proxycachedisk",
+      "Disk budget (bytes) for the HTTP proxy's cache directory."
+    ).addOpt(
+      "proxycoalesce",
+      "Make identical GET requests that reach the HTTP proxy at the same "+
+      "time share one request to the remote host (true or false)."
+    ).addOpt(
+      "proxycoalescemax",
+      "The biggest response (bytes) the HTTP proxy shares between "+
+      "identical GET requests."
     ).addSection(
       "WAR FILE CONFIGURATION OPTIONS",
       "The golf application server jar file is able to roll a golf "+
@@ -283,9 +425,41 @@ public class Main
     o.setOpt("awsprivate",    null);
     o.setOpt("proxyhost",     null);
     o.setOpt("proxyparams",   "");
+    o.setOpt("proxybackends", "");
+    o.setOpt("proxybalance",  "leastOutstanding");
+    o.setOpt("proxymaxfails", String.valueOf(3));
+    o.setOpt("proxyejecttime",      String.valueOf(30000));
+    o.setOpt("proxyhealthpath",     "");
+    o.setOpt("proxyhealthinterval", String.valueOf(10000));
     o.setOpt("proxymaxupload",String.valueOf(10*1024*1024));
+    o.setOpt("proxystreamupload", "true");
+    o.setOpt("proxymaxconns", String.valueOf(20));
+    o.setOpt("proxymaxtotal", String.valueOf(100));
+    o.setOpt("proxyconnecttimeout", String.valueOf(5000));
+    o.setOpt("proxysockettimeout",  String.valueOf(60000));
+    o.setOpt("proxyidletimeout",    String.valueOf(60000));
+    o.setOpt("proxymaxconcurrent",  String.valueOf(0));
+    o.setOpt("proxyasync",          "false");
+    o.setOpt("proxymaxqueued",      String.valueOf(100));
+    o.setOpt("proxyasynctimeout",   String.valueOf(60000));
+    o.setOpt("proxycachemem",       String.valueOf(0));
+    o.setOpt("proxycachedir",       "");
+    o.setOpt("proxycachedisk",      String.valueOf(100*1024*1024));
+    o.setOpt("proxycoalesce",       "true");
+    o.setOpt("proxycoalescemax",    String.valueOf(1024*1024));
     o.setOpt("pool-size",     String.valueOf(NUM_VMPOOL));
     o.setOpt("pool-expire",   String.valueOf(NUM_VMEXPIRE));
+    o.setOpt("pool-min-idle", String.valueOf(NUM_VMMINIDLE));
+    o.setOpt("pool-max-total",String.valueOf(NUM_VMMAXTOTAL));
+    o.setOpt("snapshot-ttl",  String.valueOf(NUM_SNAPTTL));
+    o.setOpt("snapshot-bytes",String.valueOf(NUM_SNAPBYTES));
+    o.setOpt("gzip-level",    String.valueOf(NUM_GZIPLEVEL));
+    o.setOpt("gzip-min-size", String.valueOf(NUM_GZIPMIN));
+    o.setOpt("build-threads", String.valueOf(0));
+    o.setOpt("watch-interval",String.valueOf(500));
+    o.setOpt("session-cookie","false");
+    o.setOpt("session-secret","");
+    o.setOpt("build-cache",   "");
     o.setOpt("cloudfronts",   String.valueOf(NUM_CFDOMAINS));
     o.setOpt("cfdomains",     "[]");
     o.setOpt("compress-js",   "false");
@@ -504,6 +678,15 @@ public class Main
       sh1.setInitParameter("devmode",     o.getOpt("devmode"));
       sh1.setInitParameter("poolsize",    o.getOpt("pool-size"));
       sh1.setInitParameter("poolexpire",  o.getOpt("pool-expire"));
+      sh1.setInitParameter("poolminidle", o.getOpt("pool-min-idle"));
+      sh1.setInitParameter("poolmaxtotal",o.getOpt("pool-max-total"));
+      sh1.setInitParameter("snapshotttl", o.getOpt("snapshot-ttl"));
+      sh1.setInitParameter("snapshotbytes",o.getOpt("snapshot-bytes"));
+      sh1.setInitParameter("gziplevel",   o.getOpt("gzip-level"));
+      sh1.setInitParameter("gzipminsize", o.getOpt("gzip-min-size"));
+      sh1.setInitParameter("watchinterval", o.getOpt("watch-interval"));
+      sh1.setInitParameter("sessioncookie", o.getOpt("session-cookie"));
+      sh1.setInitParameter("sessionsecret", o.getOpt("session-secret"));
       sh1.setInitParameter("version",     mAppVersion);
 
       cx1.addServlet(sh1, "/*");
@@ -559,8 +742,50 @@ public class Main
                       .replaceAll("__PROXY_PORT__",     String.valueOf(port))
                       .replaceAll("__PROXY_PATH__",     path)
                       .replaceAll("__PROXY_QUERY__",    o.getOpt("proxyparams"))
+                      .replaceAll("__PROXY_BACKENDS__",
+                                    o.getOpt("proxybackends"))
+                      .replaceAll("__LOAD_BALANCING__",
+                                    o.getOpt("proxybalance"))
+                      .replaceAll("__MAX_FAILS__",
+                                    o.getOpt("proxymaxfails"))
+                      .replaceAll("__EJECT_TIME__",
+                                    o.getOpt("proxyejecttime"))
+                      .replaceAll("__HEALTH_CHECK_PATH__",
+                                    o.getOpt("proxyhealthpath"))
+                      .replaceAll("__HEALTH_CHECK_INTERVAL__",
+                                    o.getOpt("proxyhealthinterval"))
                       .replaceAll("__MAX_FILE_UPLOAD_SIZE__",
-                                    o.getOpt("proxymaxupload"));
+                                    o.getOpt("proxymaxupload"))
+                      .replaceAll("__STREAM_MULTIPART__",
+                                    o.getOpt("proxystreamupload"))
+                      .replaceAll("__MAX_CONNECTIONS_PER_HOST__",
+                                    o.getOpt("proxymaxconns"))
+                      .replaceAll("__MAX_TOTAL_CONNECTIONS__",
+                                    o.getOpt("proxymaxtotal"))
+                      .replaceAll("__CONNECT_TIMEOUT__",
+                                    o.getOpt("proxyconnecttimeout"))
+                      .replaceAll("__SOCKET_TIMEOUT__",
+                                    o.getOpt("proxysockettimeout"))
+                      .replaceAll("__IDLE_CONNECTION_TIMEOUT__",
+                                    o.getOpt("proxyidletimeout"))
+                      .replaceAll("__MAX_CONCURRENT_REQUESTS__",
+                                    o.getOpt("proxymaxconcurrent"))
+                      .replaceAll("__MAX_QUEUED_REQUESTS__",
+                                    o.getOpt("proxymaxqueued"))
+                      .replaceAll("__ASYNC_PROXY__",
+                                    o.getOpt("proxyasync"))
+                      .replaceAll("__ASYNC_TIMEOUT__",
+                                    o.getOpt("proxyasynctimeout"))
+                      .replaceAll("__CACHE_MEMORY_BYTES__",
+                                    o.getOpt("proxycachemem"))
+                      .replaceAll("__CACHE_DIRECTORY__",
+                                    o.getOpt("proxycachedir"))
+                      .replaceAll("__CACHE_DISK_BYTES__",
+                                    o.getOpt("proxycachedisk"))
+                      .replaceAll("__COALESCE_REQUESTS__",
+                                    o.getOpt("proxycoalesce"))
+                      .replaceAll("__COALESCE_MAX_BYTES__",
+                                    o.getOpt("proxycoalescemax"));
 
       // setup the ant build file
       antStr =  antStr.replaceAll("__OUTFILE__",        name + ".war")
@@ -632,6 +857,16 @@ public class Main
                       .replaceAll("__DESCRIPTION__",    o.getOpt("description"))
                       .replaceAll("__POOLSIZE__",       o.getOpt("pool-size"))
                       .replaceAll("__POOLEXPIRE__",     o.getOpt("pool-expire"))
+                      .replaceAll("__POOLMINIDLE__",    o.getOpt("pool-min-idle"))
+                      .replaceAll("__POOLMAXTOTAL__",   o.getOpt("pool-max-total"))
+                      .replaceAll("__SNAPSHOTTTL__",    o.getOpt("snapshot-ttl"))
+                      .replaceAll("__SNAPSHOTBYTES__",  o.getOpt("snapshot-bytes"))
+                      .replaceAll("__GZIPLEVEL__",      o.getOpt("gzip-level"))
+                      .replaceAll("__GZIPMINSIZE__",    o.getOpt("gzip-min-size"))
+                      .replaceAll("__SESSIONCOOKIE__",  o.getOpt("session-cookie"))
+                      .replaceAll("__SESSIONSECRET__",  
+                                    Matcher.quoteReplacement(
+                                      o.getOpt("session-secret")))
                       .replaceAll("__GOLF_VERSION__",   mAppVersion)
                       .replaceAll("__DEVMODE__",        o.getOpt("devmode"));
 
@@ -789,23 +1024,32 @@ public class Main
   }
 
   public static void cacheNewDotHtmlFile() throws Exception {
-    String newHtmlStr = getNewDotHtmlString(false);
-    File f = new File(o.getOpt("approot|proxypath"), NEW_HTML);
-    if (f.exists())
-      f.delete();
-    f.deleteOnExit();
-    PrintWriter out = new PrintWriter(new FileWriter(f));
-    out.print(newHtmlStr);
+    File root = new File(o.getOpt("approot|proxypath"));
+    writeFileAtomically(new File(root, NEW_HTML), getNewDotHtmlString(false));
+    writeFileAtomically(new File(root, NEW_FC_HTML), getNewDotHtmlString(true));
+  }
+
+  /**
+   * Replace a generated file in one go, so that the devmode server never
+   * serves it half written.
+   *
+   * @param       f           the file
+   * @param       text        its new contents
+   */
+  private static void writeFileAtomically(File f, String text) 
+      throws IOException {
+    File tmp = new File(f.getParentFile(), "." + f.getName() + ".tmp");
+
+    PrintWriter out = new PrintWriter(new FileWriter(tmp));
+    out.print(text);
     out.close();
 
-    newHtmlStr = getNewDotHtmlString(true);
-    f = new File(o.getOpt("approot|proxypath"), NEW_FC_HTML);
-    if (f.exists())
+    if (!tmp.renameTo(f)) {
       f.delete();
+      if (!tmp.renameTo(f))
+        throw new IOException("can't write " + f);
+    }
     f.deleteOnExit();
-    out = new PrintWriter(new FileWriter(f));
-    out.print(newHtmlStr);
-    out.close();
   }
 
   public static String getNewDotHtmlString(boolean fc) throws Exception {
@@ -849,12 +1093,7 @@ public class Main
 
   public static void cacheComponentsFile() throws Exception {
     File f = new File(o.getOpt("approot|proxypath"), COMPONENTS_JS);
-    if (f.exists())
-      f.delete();
-    f.deleteOnExit();
-    PrintWriter out = new PrintWriter(new FileWriter(f));
-    out.print(getComponentsString());
-    out.close();
+    writeFileAtomically(f, getComponentsString());
   }
 
   private void cacheComponentsAws() throws Exception {
@@ -862,18 +1101,236 @@ public class Main
   }
 
   private static String getComponentsString() throws Exception {
+    // start compiling everything before waiting on any of it
+    List<Future<JSONObject>> components = submitComponents();
+    List<Future<JSONObject>> plugins    = submitScripts(DIR_MODULES);
+    List<Future<JSONObject>> scripts    = submitScripts(DIR_SCRIPTS);
+    List<Future<JSONObject>> styles     = submitStyles(DIR_STYLES);
+
     String ret = 
-          "jQuery.golf.components=" + getComponentsJSON(null, null) + ";" +
+          "jQuery.golf.components=" + collectJSON(components) + ";" +
            "jQuery.golf.res=" + getResourcesJSON(null, null) + ";" +
-           "jQuery.golf.plugins=" + getScriptsJSON(DIR_MODULES, null) + ";" +
-           "jQuery.golf.scripts=" + getScriptsJSON(DIR_SCRIPTS, null) + ";" +
-           "jQuery.golf.styles=" + getStylesJSON(DIR_STYLES, null) + ";" +
+           "jQuery.golf.plugins=" + collectJSON(plugins) + ";" +
+           "jQuery.golf.scripts=" + collectJSON(scripts) + ";" +
+           "jQuery.golf.styles=" + collectJSON(styles) + ";" +
            "jQuery.golf.setupComponents();";
     if (o.getOpt("static") != null)
       ret = ret.replaceAll("\\?path=/*", "");
+
+    // whatever this build didn't use is out of date
+    if (getBuildCache() != null)
+      getBuildCache().prune();
+
     return ret;
   }
 
+  /**
+   * The cache of compiled output, or null if caching is off.
+   */
+  private static synchronized BuildCache getBuildCache() {
+    String dir = o.getOpt("build-cache");
+
+    if (mBuildCache == null && !"none".equals(dir)) {
+      File cacheDir = (dir == null || dir.length() == 0)
+        ? new File(o.getOpt("approot|proxypath"), ".golf-build")
+        : new File(dir);
+
+      String salt = mAppVersion +
+        " devmode=" + o.getFlag("devmode") +
+        " compress-js=" + o.getFlag("compress-js") +
+        " compress-css=" + o.getFlag("compress-css");
+
+      mBuildCache = new BuildCache(cacheDir, salt);
+    }
+
+    return mBuildCache;
+  }
+
+  /**
+   * Compile something, or reuse its cached output if its inputs haven't
+   * changed.
+   *
+   * @param       kind        what's compiled ("component", etc.)
+   * @param       name        the name of the thing compiled
+   * @param       job         compiles it
+   * @param       inputs      the files it's compiled from
+   * @return                  the compiled output
+   */
+  private static JSONObject compileCached(String kind, String name,
+      Callable<JSONObject> job, File... inputs) throws Exception {
+    BuildCache cache = getBuildCache();
+
+    if (cache == null)
+      return job.call();
+
+    String      key     = cache.key(kind, name, inputs);
+    JSONObject  result  = cache.get(key);
+
+    if (result == null) {
+      result = job.call();
+      cache.put(key, result);
+    }
+
+    return result;
+  }
+
+  /**
+   * The thread pool components, scripts and styles are compiled on.
+   */
+  private static synchronized ExecutorService getBuildPool() {
+    if (mBuildPool == null) {
+      int n = Integer.valueOf(o.getOpt("build-threads"));
+      if (n <= 0)
+        n = Runtime.getRuntime().availableProcessors();
+
+      mBuildPool = Executors.newFixedThreadPool(n, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "golf-build");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return mBuildPool;
+  }
+
+  /**
+   * Wait for compile jobs and put their results into a JSON object, keyed
+   * by name. The object doesn't keep any order; jQuery.golf looks plugins
+   * up by name and sorts the scripts by name itself.
+   *
+   * @param       jobs        the jobs
+   * @return                  the JSON text
+   */
+  private static String collectJSON(List<Future<JSONObject>> jobs) 
+      throws Exception {
+    JSONObject json = new JSONObject();
+
+    try {
+      for (Future<JSONObject> job : jobs) {
+        JSONObject result = job.get();
+        json.put((String) result.get("name"), result);
+      }
+    } catch (ExecutionException e) {
+      for (Future<JSONObject> job : jobs)
+        job.cancel(true);
+      if (e.getCause() instanceof Exception)
+        throw (Exception) e.getCause();
+      throw e;
+    }
+
+    return json.toString();
+  }
+
+  /**
+   * Find the files with an extension under a directory, in a fixed order
+   * so builds come out the same every time.
+   *
+   * @param       base        the directory paths are relative to
+   * @param       path        the path to look in ("" for the base)
+   * @param       ext         the extension, like ".html"
+   * @param       skipRes     whether to leave out ".res" directories
+   * @param       found       the paths found, starting with '/'
+   */
+  private static void findFiles(File base, String path, String ext, 
+      boolean skipRes, List<String> found) {
+    File file = new File(base, path);
+      
+    if (file.getName().startsWith("."))
+      return;
+
+    if (file.isFile()) {
+      if (path.endsWith(ext))
+        found.add(path);
+    } else if (file.isDirectory() && 
+        !(skipRes && file.getName().endsWith(".res"))) {
+      String[] list = file.list();
+      Arrays.sort(list);
+      for (String f : list)
+        findFiles(base, path+"/"+f, ext, skipRes, found);
+    }
+  }
+
+  private static List<Future<JSONObject>> submitComponents() {
+    File                      base  = 
+      new File(o.getOpt("approot|proxypath"), DIR_COMPONENTS);
+    List<String>              found = new ArrayList<String>();
+    List<Future<JSONObject>>  jobs  = new ArrayList<Future<JSONObject>>();
+
+    findFiles(base, "", ".html", true, found);
+
+    for (String path : found) {
+      final String cmpName = path.replaceFirst("\\.html$", "");
+      final File   html    = new File(base, cmpName + ".html");
+      final File   res     = new File(base, cmpName + ".res");
+      jobs.add(getBuildPool().submit(new Callable<JSONObject>() {
+        public JSONObject call() throws Exception {
+          return compileCached("component", cmpName,
+            new Callable<JSONObject>() {
+              public JSONObject call() throws Exception {
+                return processComponent(cmpName);
+              }
+            }, html, res);
+        }
+      }));
+    }
+
+    return jobs;
+  }
+
+  private static List<Future<JSONObject>> submitScripts(String dir) {
+    File                      base  = new File(o.getOpt("approot|proxypath"));
+    List<String>              found = new ArrayList<String>();
+    List<Future<JSONObject>>  jobs  = new ArrayList<Future<JSONObject>>();
+
+    findFiles(base, dir, ".js", false, found);
+
+    for (String path : found) {
+      final String cmpName = path.replaceFirst("\\.js$", "");
+      final String keyName = cmpName.replaceFirst("^[a-z]+/+", "");
+      final File   js      = new File(base, path);
+      jobs.add(getBuildPool().submit(new Callable<JSONObject>() {
+        public JSONObject call() throws Exception {
+          return compileCached("script", cmpName,
+            new Callable<JSONObject>() {
+              public JSONObject call() throws Exception {
+                return processScript(cmpName).put("name", keyName);
+              }
+            }, js);
+        }
+      }));
+    }
+
+    return jobs;
+  }
+
+  private static List<Future<JSONObject>> submitStyles(String dir) {
+    File                      base  = new File(o.getOpt("approot|proxypath"));
+    List<String>              found = new ArrayList<String>();
+    List<Future<JSONObject>>  jobs  = new ArrayList<Future<JSONObject>>();
+
+    findFiles(base, dir, ".css", false, found);
+
+    for (String path : found) {
+      final String cmpName = path.replaceFirst("\\.css$", "");
+      final String keyName = 
+        cmpName.replaceFirst("^[a-z]+/+", "").replace("/", ".");
+      final File   css     = new File(base, path);
+      jobs.add(getBuildPool().submit(new Callable<JSONObject>() {
+        public JSONObject call() throws Exception {
+          return compileCached("style", cmpName,
+            new Callable<JSONObject>() {
+              public JSONObject call() throws Exception {
+                return processStyle(cmpName).put("name", keyName);
+              }
+            }, css);
+        }
+      }));
+    }
+
+    return jobs;
+  }
+
   private static String getResourcesJSON(String path, JSONObject json) 
       throws Exception {
     boolean isNew = false;
@@ -927,84 +1384,6 @@ public class Main
     return json.toString();
   }
 
-  private static String getComponentsJSON(String path, JSONObject json) 
-      throws Exception {
-    if (path == null) path = "";
-    if (json == null) json = new JSONObject();
-
-    File file = 
-      new File(new File(o.getOpt("approot|proxypath"), DIR_COMPONENTS), path);
-      
-    if (!file.getName().startsWith(".")) {
-      if (file.isFile()) {
-        if (path.endsWith(".html")) {
-          String cmpName = path.replaceFirst("\\.html$", "");
-          JSONObject cmpJson = processComponent(cmpName);
-          json.put((String) cmpJson.get("name"), cmpJson);
-        }
-      } else if (file.isDirectory() && !file.getName().endsWith(".res")) {
-        for (String f : file.list()) {
-          String ppath = path + "/" + f;
-          getComponentsJSON(path+"/"+f, json);
-        }
-      }
-    }
-
-    return json.toString();
-  }
-
-  private static String getScriptsJSON(String path, JSONObject json) 
-      throws Exception {
-    if (path == null) path = "";
-    if (json == null) json = new JSONObject();
-
-    File file = new File(o.getOpt("approot|proxypath"), path);
-      
-    if (!file.getName().startsWith(".")) {
-      if (file.isFile()) {
-        if (path.endsWith(".js")) {
-          String cmpName = path.replaceFirst("\\.js$", "");
-          String keyName = 
-            cmpName.replaceFirst("^[a-z]+/+", "");
-          json.put(keyName, processScript(cmpName).put("name", keyName));
-        }
-      } else if (file.isDirectory()) {
-        for (String f : file.list()) {
-          String ppath = path + "/" + f;
-          getScriptsJSON(path+"/"+f, json);
-        }
-      }
-    }
-
-    return json.toString();
-  }
-
-  private static String getStylesJSON(String path, JSONObject json) 
-      throws Exception {
-    if (path == null) path = "";
-    if (json == null) json = new JSONObject();
-
-    File file = new File(o.getOpt("approot|proxypath"), path);
-      
-    if (!file.getName().startsWith(".")) {
-      if (file.isFile()) {
-        if (path.endsWith(".css")) {
-          String cmpName = path.replaceFirst("\\.css$", "");
-          String keyName = 
-            cmpName.replaceFirst("^[a-z]+/+", "").replace("/", ".");
-          json.put(keyName, processStyle(cmpName).put("name", keyName));
-        }
-      } else if (file.isDirectory()) {
-        for (String f : file.list()) {
-          String ppath = path + "/" + f;
-          getStylesJSON(path+"/"+f, json);
-        }
-      }
-    }
-
-    return json.toString();
-  }
-
   public static JSONObject processComponent(String name) throws Exception {
     name = name.replaceFirst("^/+", "");
     String shortName = name.replaceFirst("(^|/)[^/]+/([^/]+)$", "$1$2");
@@ -0,0 +1,584 @@
+package com.thinkminimo.golf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+
+/**
+ * Shared HTTP cache for the responses the proxy servlet gets from the
+ * backend. Only responses the backend says are cacheable are stored, for
+ * as long as their Cache-Control or Expires headers allow. Stale entries
+ * with an ETag are kept so they can be revalidated with If-None-Match
+ * instead of fetched again.
+ *
+ * Entries live in memory, bounded by a byte budget. If a cache directory
+ * is given, entries evicted from memory and bodies too big for memory go
+ * to disk, which has its own byte budget.
+ */
+public class ProxyCache {
+
+  /** response headers that aren't stored with an entry */
+  private static final String[] UNSTORED_HEADERS = {
+    "Connection", "Keep-Alive", "Transfer-Encoding", "TE", "Trailer",
+    "Proxy-Authenticate", "Proxy-Authorization", "Upgrade", "Content-Length",
+    "Age"
+  };
+
+  /**
+   * A cached response. Entries are immutable; revalidation replaces an
+   * entry with a new one that shares its body.
+   */
+  public static class Entry {
+    public final int        status;
+    public final Header[]   headers;
+    public final String     etag;
+    public final long       length;
+    public final long       storedAt;
+    public final long       freshFor;
+
+    private final byte[]    mBody;
+    private final File      mFile;
+
+    Entry(int status, Header[] headers, String etag, byte[] body, File file,
+        long length, long storedAt, long freshFor) {
+      this.status   = status;
+      this.headers  = headers;
+      this.etag     = etag;
+      this.length   = length;
+      this.storedAt = storedAt;
+      this.freshFor = freshFor;
+      mBody         = body;
+      mFile         = file;
+    }
+
+    /**
+     * @return                  whether the entry can be used without
+     *                          asking the backend
+     */
+    public boolean isFresh() {
+      return System.currentTimeMillis() - storedAt < freshFor;
+    }
+
+    /**
+     * @return                  the age of the entry, in seconds
+     */
+    public long getAge() {
+      return Math.max(0L, (System.currentTimeMillis() - storedAt) / 1000L);
+    }
+
+    /**
+     * Open the body for reading.
+     *
+     * @return                  the body
+     * @throws  IOException     if the body was on disk and has been evicted
+     */
+    public InputStream openBody() throws IOException {
+      return (mBody != null ? new ByteArrayInputStream(mBody)
+                            : new FileInputStream(mFile));
+    }
+
+    private long memoryBytes() {
+      return (mBody != null ? mBody.length : 0L);
+    }
+  }
+
+  /**
+   * Receives a response body as it is sent to the client, and stores the
+   * response when it's complete. If the body gets too big it is quietly
+   * dropped.
+   */
+  public class Recorder extends OutputStream {
+    private final String            mKey;
+    private final int               mStatus;
+    private final Header[]          mHeaders;
+    private final String            mEtag;
+    private final long              mFreshFor;
+    private final long              mStoredAt;
+    private ByteArrayOutputStream   mBuffer = new ByteArrayOutputStream();
+    private File                    mFile   = null;
+    private OutputStream            mFileOut = null;
+    private long                    mLength = 0L;
+    private boolean                 mFailed = false;
+
+    Recorder(String key, int status, Header[] headers, String etag,
+        long freshFor) {
+      mKey      = key;
+      mStatus   = status;
+      mHeaders  = headers;
+      mEtag     = etag;
+      mFreshFor = freshFor;
+      mStoredAt = System.currentTimeMillis();
+    }
+
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) {
+      if (mFailed)
+        return;
+
+      mLength += len;
+
+      try {
+        if (mBuffer != null && mLength <= mMaxMemoryEntry) {
+          mBuffer.write(b, off, len);
+          return;
+        }
+
+        if (mDir == null || mLength > mMaxDiskEntry) {
+          abandon();
+          return;
+        }
+
+        // too big for memory, so move it to disk
+        if (mFileOut == null) {
+          mFile     = File.createTempFile("golf-proxy-", ".cache", mDir);
+          mFileOut  = new FileOutputStream(mFile);
+          mBuffer.writeTo(mFileOut);
+          mBuffer   = null;
+        }
+
+        mFileOut.write(b, off, len);
+      } catch (IOException e) {
+        abandon();
+      }
+    }
+
+    /**
+     * Store the response. Call this once the whole body has been written.
+     */
+    public void commit() {
+      if (mFailed)
+        return;
+
+      try {
+        if (mFileOut != null)
+          mFileOut.close();
+      } catch (IOException e) {
+        abandon();
+        return;
+      }
+
+      byte[] body = (mBuffer != null ? mBuffer.toByteArray() : null);
+      put(mKey, new Entry(mStatus, mHeaders, mEtag, body, mFile, mLength,
+            mStoredAt, mFreshFor));
+    }
+
+    /**
+     * Give up on storing the response.
+     */
+    public void abandon() {
+      mFailed = true;
+      mBuffer = null;
+
+      if (mFileOut != null) {
+        try {
+          mFileOut.close();
+        } catch (IOException e) {
+          // deleting it anyway
+        }
+      }
+
+      if (mFile != null)
+        mFile.delete();
+    }
+  }
+
+  private final LinkedHashMap<String, Entry> mMemory =
+    new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  private final LinkedHashMap<String, Entry> mDisk =
+    new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  private final long  mMaxMemoryBytes;
+  private final long  mMaxDiskBytes;
+  private final long  mMaxMemoryEntry;
+  private final long  mMaxDiskEntry;
+  private final File  mDir;
+  private long        mMemoryBytes  = 0L;
+  private long        mDiskBytes    = 0L;
+
+  /**
+   * Constructor.
+   *
+   * @param       maxMemoryBytes  upper bound on the memory used by bodies
+   * @param       dir             where to keep the disk tier, or null for
+   *                              no disk tier
+   * @param       maxDiskBytes    upper bound on the disk used by bodies
+   */
+  public ProxyCache(long maxMemoryBytes, File dir, long maxDiskBytes) {
+    mMaxMemoryBytes = maxMemoryBytes;
+    mMaxDiskBytes   = maxDiskBytes;
+    mMaxMemoryEntry = maxMemoryBytes / 8;
+    mMaxDiskEntry   = maxDiskBytes / 8;
+    mDir            = dir;
+
+    if (mDir != null)
+      mDir.mkdirs();
+  }
+
+  /**
+   * Build a cache key. Backend responses only vary by the request url and
+   * the content coding the client accepts; anything else is not stored.
+   *
+   * @param       url             the backend url
+   * @param       acceptEncoding  the Accept-Encoding request header, or null
+   * @return                      the key
+   */
+  public static String key(String url, String acceptEncoding) {
+    return url + "|" + (acceptEncoding != null ? acceptEncoding : "");
+  }
+
+  /**
+   * Look up an entry. Stale entries are returned too, for revalidation.
+   *
+   * @param       key         the cache key
+   * @return                  the entry, or null
+   */
+  public synchronized Entry get(String key) {
+    Entry entry = mMemory.get(key);
+    return (entry != null ? entry : mDisk.get(key));
+  }
+
+  /**
+   * Start storing a backend response, if it can be stored.
+   *
+   * @param       key         the cache key
+   * @param       status      the response status
+   * @param       headers     the response headers
+   * @return                  something to write the body to, or null if
+   *                          the response isn't cacheable
+   */
+  public Recorder record(String key, int status, Header[] headers) {
+    if (status != 200)
+      return null;
+
+    String  etag      = null;
+    String  cc        = "";
+    String  expires   = null;
+    String  date      = null;
+    String  age       = null;
+
+    for (Header h : headers) {
+      String name = h.getName();
+
+      if (name.equalsIgnoreCase("ETag"))
+        etag = h.getValue();
+      else if (name.equalsIgnoreCase("Age"))
+        age = h.getValue();
+      else if (name.equalsIgnoreCase("Cache-Control"))
+        cc += "," + h.getValue().toLowerCase();
+      else if (name.equalsIgnoreCase("Expires"))
+        expires = h.getValue();
+      else if (name.equalsIgnoreCase("Date"))
+        date = h.getValue();
+      else if (name.equalsIgnoreCase("Set-Cookie"))
+        return null;
+      else if (name.equalsIgnoreCase("Vary") && !isAcceptEncoding(h.getValue()))
+        return null;
+    }
+
+    if (cc.indexOf("no-store") != -1 || cc.indexOf("private") != -1)
+      return null;
+
+    long freshFor = freshnessLifetime(cc, expires, date, age);
+
+    // a response that's never fresh is only worth keeping to revalidate
+    if (freshFor <= 0L && etag == null)
+      return null;
+
+    return new Recorder(key, status, storedHeaders(headers), etag, freshFor);
+  }
+
+  /**
+   * Update an entry after the backend said it hasn't changed.
+   *
+   * @param       key         the cache key
+   * @param       stale       the entry that was revalidated
+   * @param       headers     the headers of the 304 response
+   * @return                  the updated entry
+   */
+  public Entry refresh(String key, Entry stale, Header[] headers) {
+    ArrayList<Header> merged = new ArrayList<Header>();
+
+    // headers in the 304 replace the stored ones
+    for (Header h : stale.headers) {
+      boolean replaced = false;
+      for (Header n : headers)
+        replaced |= n.getName().equalsIgnoreCase(h.getName());
+      if (!replaced)
+        merged.add(h);
+    }
+    for (Header h : storedHeaders(headers))
+      merged.add(h);
+
+    Header[]  all = merged.toArray(new Header[merged.size()]);
+    String    cc  = "";
+    String    exp = null;
+    String    dat = null;
+    String    age = null;
+
+    // Age isn't stored, so it comes from the 304 itself
+    for (Header h : headers)
+      if (h.getName().equalsIgnoreCase("Age"))
+        age = h.getValue();
+
+    for (Header h : all) {
+      if (h.getName().equalsIgnoreCase("Cache-Control"))
+        cc += "," + h.getValue().toLowerCase();
+      else if (h.getName().equalsIgnoreCase("Expires"))
+        exp = h.getValue();
+      else if (h.getName().equalsIgnoreCase("Date"))
+        dat = h.getValue();
+    }
+
+    Entry entry = new Entry(stale.status, all, stale.etag, stale.mBody,
+        stale.mFile, stale.length, System.currentTimeMillis(),
+        freshnessLifetime(cc, exp, dat, age));
+
+    put(key, entry);
+    return entry;
+  }
+
+  /**
+   * Drop an entry, for instance because its body has gone missing.
+   *
+   * @param       key         the cache key
+   */
+  public synchronized void remove(String key) {
+    Entry old = mMemory.remove(key);
+    if (old != null)
+      mMemoryBytes -= old.memoryBytes();
+
+    old = mDisk.remove(key);
+    if (old != null) {
+      mDiskBytes -= old.length;
+      old.mFile.delete();
+    }
+  }
+
+  /**
+   * Drop the entries for a url, whatever content coding they are in.
+   *
+   * @param       url         the backend url
+   */
+  public synchronized void invalidate(String url) {
+    String                  prefix  = url + "|";
+    ArrayList<String>       keys    = new ArrayList<String>();
+
+    for (String key : mMemory.keySet())
+      if (key.startsWith(prefix))
+        keys.add(key);
+    for (String key : mDisk.keySet())
+      if (key.startsWith(prefix))
+        keys.add(key);
+
+    for (String key : keys)
+      remove(key);
+  }
+
+  /**
+   * Drop every entry.
+   */
+  public synchronized void clear() {
+    for (Entry e : mDisk.values())
+      e.mFile.delete();
+    mMemory.clear();
+    mDisk.clear();
+    mMemoryBytes  = 0L;
+    mDiskBytes    = 0L;
+  }
+
+  /**
+   * Store an entry in the tier its body is in, evicting old entries to
+   * make room. Entries evicted from memory are moved to disk if there is
+   * a disk tier.
+   */
+  private void put(String key, Entry entry) {
+    ArrayList<Map.Entry<String, Entry>> evicted =
+      new ArrayList<Map.Entry<String, Entry>>();
+
+    synchronized (this) {
+      Entry memOld  = mMemory.remove(key);
+      Entry diskOld = mDisk.remove(key);
+
+      if (memOld != null)
+        mMemoryBytes -= memOld.memoryBytes();
+      if (diskOld != null) {
+        mDiskBytes -= diskOld.length;
+        if (diskOld.mFile != entry.mFile)
+          diskOld.mFile.delete();
+      }
+
+      if (entry.mBody != null) {
+        mMemory.put(key, entry);
+        mMemoryBytes += entry.memoryBytes();
+
+        Iterator<Map.Entry<String, Entry>> i = mMemory.entrySet().iterator();
+        while (mMemoryBytes > mMaxMemoryBytes && i.hasNext()) {
+          Map.Entry<String, Entry> lru = i.next();
+          i.remove();
+          mMemoryBytes -= lru.getValue().memoryBytes();
+          if (mDir != null && lru.getValue().length <= mMaxDiskEntry)
+            evicted.add(lru);
+        }
+      } else {
+        mDisk.put(key, entry);
+        mDiskBytes += entry.length;
+        trimDisk();
+      }
+    }
+
+    // write demoted entries out without holding the lock
+    for (Map.Entry<String, Entry> e : evicted)
+      demote(e.getKey(), e.getValue());
+  }
+
+  /**
+   * Move an entry evicted from memory to disk.
+   */
+  private void demote(String key, Entry entry) {
+    File file = null;
+
+    try {
+      file = File.createTempFile("golf-proxy-", ".cache", mDir);
+      OutputStream out = new FileOutputStream(file);
+      try {
+        out.write(entry.mBody);
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      if (file != null)
+        file.delete();
+      return;
+    }
+
+    Entry onDisk = new Entry(entry.status, entry.headers, entry.etag, null,
+        file, entry.length, entry.storedAt, entry.freshFor);
+
+    synchronized (this) {
+      // a newer response may have been stored in the meantime
+      if (mMemory.containsKey(key) || mDisk.containsKey(key)) {
+        file.delete();
+        return;
+      }
+      mDisk.put(key, onDisk);
+      mDiskBytes += onDisk.length;
+      trimDisk();
+    }
+  }
+
+  /**
+   * Evict disk entries until the disk tier is within its budget. Must be
+   * called with the lock held.
+   */
+  private void trimDisk() {
+    Iterator<Map.Entry<String, Entry>> i = mDisk.entrySet().iterator();
+    while (mDiskBytes > mMaxDiskBytes && i.hasNext()) {
+      Entry lru = i.next().getValue();
+      i.remove();
+      mDiskBytes -= lru.length;
+      lru.mFile.delete();
+    }
+  }
+
+  /**
+   * Work out how much longer a response stays fresh, taking off the time
+   * it already spent in caches upstream.
+   *
+   * @param       cc          the Cache-Control directives, lower case
+   * @param       expires     the Expires header, or null
+   * @param       date        the Date header, or null
+   * @param       age         the Age header, or null
+   * @return                  the remaining freshness lifetime (msec)
+   */
+  private static long freshnessLifetime(String cc, String expires,
+      String date, String age) {
+    if (cc.indexOf("no-cache") != -1)
+      return 0L;
+
+    long lifetime = 0L;
+    long sMaxAge  = directive(cc, "s-maxage");
+    long maxAge   = directive(cc, "max-age");
+
+    if (sMaxAge >= 0L) {
+      lifetime = sMaxAge * 1000L;
+    } else if (maxAge >= 0L) {
+      lifetime = maxAge * 1000L;
+    } else if (expires != null) {
+      try {
+        long now = (date != null ? DateUtil.parseDate(date).getTime()
+                                 : System.currentTimeMillis());
+        lifetime = DateUtil.parseDate(expires).getTime() - now;
+      } catch (DateParseException e) {
+        // an invalid Expires means already expired
+        return 0L;
+      }
+    }
+
+    if (age != null) {
+      try {
+        lifetime -= Math.max(0L, Long.parseLong(age.trim())) * 1000L;
+      } catch (NumberFormatException e) {
+        // a bad Age counts as none
+      }
+    }
+
+    return lifetime;
+  }
+
+  /**
+   * Get the value of a numeric Cache-Control directive.
+   *
+   * @return                  the value, or -1 if it's not there
+   */
+  private static long directive(String cc, String name) {
+    for (String d : cc.split(",")) {
+      d = d.trim();
+      if (d.startsWith(name + "=")) {
+        try {
+          return Long.parseLong(d.substring(name.length() + 1).replace("\"", ""));
+        } catch (NumberFormatException e) {
+          return -1L;
+        }
+      }
+    }
+    return -1L;
+  }
+
+  private static boolean isAcceptEncoding(String vary) {
+    for (String v : vary.split(","))
+      if (!v.trim().equalsIgnoreCase("Accept-Encoding"))
+        return false;
+    return true;
+  }
+
+  private static Header[] storedHeaders(Header[] headers) {
+    ArrayList<Header> stored = new ArrayList<Header>();
+
+    for (Header h : headers) {
+      boolean skip = false;
+      for (String u : UNSTORED_HEADERS)
+        skip |= u.equalsIgnoreCase(h.getName());
+      if (!skip)
+        stored.add(h);
+    }
+
+    return stored.toArray(new Header[stored.size()]);
+  }
+}
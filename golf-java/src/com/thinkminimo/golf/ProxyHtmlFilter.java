@@ -0,0 +1,195 @@
+package com.thinkminimo.golf;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Single pass cleanup of the html produced by a proxymode jsvm before it
+ * is sent to the client. Text is copied straight through to the output;
+ * only tags are looked at.
+ */
+public class ProxyHtmlFilter {
+
+  /** matches golfid attributes, which are of no use on the client */
+  private static final Pattern GOLFID_ATTR =
+    Pattern.compile(" golfid=\"[0-9]+\"");
+
+  /** matches golfid plus the presentation attributes bots don't want */
+  private static final Pattern BOT_ATTR =
+    Pattern.compile(
+      " (?:golfid=\"[0-9]+\"|(?:style|class)=(?:\"[^\"]*\"|'[^']*'))");
+
+  private static final String JS_SCRIPT = "<script type=\"text/javascript\"";
+
+  private final boolean mStrip;
+  private final boolean mBot;
+  private final boolean mIndex;
+
+  /**
+   * Constructor.
+   *
+   * @param       strip       remove scripts and noscripts, unescape styles
+   *                          (proxy mode)
+   * @param       bot         also remove style and class attributes
+   * @param       index       let robots index the page
+   */
+  public ProxyHtmlFilter(boolean strip, boolean bot, boolean index) {
+    mStrip  = strip;
+    mBot    = strip && bot;
+    mIndex  = index;
+  }
+
+  /**
+   * Filter a page.
+   *
+   * @param       page        the html page contents
+   * @param       out         where to write the filtered html
+   */
+  public void write(String page, Writer out) throws IOException {
+    Matcher attrs   = (mBot ? BOT_ATTR : GOLFID_ATTR).matcher("");
+    boolean index   = mIndex;
+    int     n       = page.length();
+    int     i       = 0;
+
+    // remove xml tag (why is it even there?)
+    if (page.startsWith("<?xml ")) {
+      int gt = page.indexOf('>');
+      if (gt != -1 && gt+1 < n && page.charAt(gt+1) == '\n')
+        i = gt + 2;
+    }
+
+    while (i < n) {
+      int lt = page.indexOf('<', i);
+
+      if (lt == -1) {
+        out.write(page, i, n - i);
+        break;
+      }
+
+      out.write(page, i, lt - i);
+
+      if (page.startsWith("<!--", lt)) {
+        i = copyThrough(page, lt, "-->", out);
+      } else if (page.startsWith("<![CDATA[", lt)) {
+        i = copyThrough(page, lt, "]]>", out);
+      } else if (mStrip && isElement(page, lt, "noscript")) {
+        i = skipElement(page, lt, "</noscript>");
+      } else if (mStrip && page.startsWith(JS_SCRIPT, lt)) {
+        i = skipElement(page, lt, "</script>");
+      } else {
+        int gt = page.indexOf('>', lt);
+
+        if (gt == -1) {
+          out.write(page, lt, n - lt);
+          break;
+        }
+
+        String tag = page.substring(lt, gt + 1);
+
+        // robots must not index event proxy (because infinite loops, etc.)
+        if (index && tag.indexOf("noindex,nofollow") != -1) {
+          tag   = tag.replace("noindex,nofollow", "index,follow");
+          index = false;
+        }
+
+        writeTag(tag, attrs, out);
+        i = gt + 1;
+
+        if (mStrip && isElement(page, lt, "style") && !tag.endsWith("/>")) {
+          int end = page.indexOf("</style>", i);
+          end = (end == -1 ? n : end);
+          writeStyle(page, i, end, out);
+          i = end;
+        }
+      }
+    }
+  }
+
+  /**
+   * Write a tag, dropping the unwanted attributes.
+   */
+  private static void writeTag(String tag, Matcher attrs, Writer out)
+      throws IOException {
+    int pos = 0;
+
+    attrs.reset(tag);
+    while (attrs.find()) {
+      out.write(tag, pos, attrs.start() - pos);
+      pos = attrs.end();
+    }
+    out.write(tag, pos, tag.length() - pos);
+  }
+
+  /**
+   * Write the contents of a style element with the xml entities that
+   * htmlunit put in turned back into characters, and no newlines.
+   */
+  private static void writeStyle(String page, int start, int end, Writer out)
+      throws IOException {
+    for (int i=start; i<end; i++) {
+      char c = page.charAt(i);
+
+      if (c == '\n') // FIXME this is sketchy
+        continue;
+
+      if (c == '&') {
+        if (page.startsWith("&gt;", i)) {
+          out.write('>');
+          i += 3;
+          continue;
+        } else if (page.startsWith("&lt;", i)) {
+          out.write('<');
+          i += 3;
+          continue;
+        } else if (page.startsWith("&amp;", i)) {
+          out.write('&');
+          i += 4;
+          continue;
+        } else if (page.startsWith("&apos;", i)) {
+          out.write('\'');
+          i += 5;
+          continue;
+        }
+      }
+
+      out.write(c);
+    }
+  }
+
+  /**
+   * Whether the tag at some position opens the named element.
+   */
+  private static boolean isElement(String page, int lt, String name) {
+    int end = lt + 1 + name.length();
+    if (!page.startsWith(name, lt + 1) || end >= page.length())
+      return false;
+    char c = page.charAt(end);
+    return c == '>' || c == ' ' || c == '/' || c == '\n' || c == '\t';
+  }
+
+  /**
+   * Skip over an element, which might be an empty one like <script/>.
+   */
+  private static int skipElement(String page, int lt, String close) {
+    int gt = page.indexOf('>', lt);
+    if (gt == -1)
+      return page.length();
+    if (page.charAt(gt - 1) == '/')
+      return gt + 1;
+    return skipThrough(page, gt + 1, close);
+  }
+
+  private static int copyThrough(String page, int start, String end,
+      Writer out) throws IOException {
+    int i = skipThrough(page, start, end);
+    out.write(page, start, i - start);
+    return i;
+  }
+
+  private static int skipThrough(String page, int start, String end) {
+    int i = page.indexOf(end, start);
+    return (i == -1 ? page.length() : i + end.length());
+  }
+}
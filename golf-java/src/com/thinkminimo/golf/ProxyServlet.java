@@ -6,15 +6,22 @@ package com.thinkminimo.golf;
  */
 
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.ConnectException;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -26,20 +33,30 @@ import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.LimitedInputStream;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.URIException;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.PutMethod;
 import org.apache.commons.httpclient.methods.DeleteMethod;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
 import org.apache.commons.httpclient.methods.InputStreamRequestEntity;
-import org.apache.commons.httpclient.methods.multipart.ByteArrayPartSource;
 import org.apache.commons.httpclient.methods.multipart.FilePart;
 import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
 import org.apache.commons.httpclient.methods.multipart.Part;
+import org.apache.commons.httpclient.methods.multipart.PartSource;
 import org.apache.commons.httpclient.methods.multipart.StringPart;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+import org.mortbay.util.ajax.Continuation;
+import org.mortbay.util.ajax.ContinuationSupport;
 
 
 public class ProxyServlet extends HttpServlet {
@@ -68,6 +85,41 @@ public class ProxyServlet extends HttpServlet {
      * The directory to use to temporarily store uploaded files
      */
     private static final File FILE_UPLOAD_TEMP_DIRECTORY = new File(System.getProperty("java.io.tmpdir"));
+    /**
+     * Hop-by-hop headers, which describe the connection to the proxy host
+     * and must not be passed on to the client
+     */
+    private static final String[] STRING_ARRAY_HOP_BY_HOP_HEADERS = {
+        "Connection", "Keep-Alive", "Transfer-Encoding", "TE", "Trailer",
+        "Proxy-Authenticate", "Proxy-Authorization", "Upgrade"
+    };
+    /**
+     * The size of the buffers used to copy proxied response bodies
+     */
+    private static final int INT_BUFFER_SIZE = 16 * 1024;
+    /**
+     * Copy buffers not currently in use, so they can be reused instead of
+     * allocated for every request. At most this many are kept around.
+     */
+    private static final ArrayBlockingQueue<byte[]> queueBuffers = new ArrayBlockingQueue<byte[]>(64);
+    /**
+     * Request attribute holding the cache key of a cacheable GET
+     */
+    private static final String STRING_CACHE_KEY_ATTRIBUTE = "com.thinkminimo.golf.ProxyServlet.cacheKey";
+    /**
+     * Request attribute holding the stale cached response a GET is revalidating
+     */
+    private static final String STRING_CACHE_ENTRY_ATTRIBUTE = "com.thinkminimo.golf.ProxyServlet.cacheEntry";
+    /**
+     * The request attribute holding the flight a GET is leading, if it is
+     * leading one
+     */
+    private static final String STRING_FLIGHT_ATTRIBUTE = "com.thinkminimo.golf.ProxyServlet.flight";
+    /**
+     * The request attribute set when a streamed upload turns out to be
+     * bigger than the maximum upload size
+     */
+    private static final String STRING_TOO_LARGE_ATTRIBUTE = "com.thinkminimo.golf.ProxyServlet.tooLarge";
     
     // Proxy host params
     /**
@@ -87,9 +139,161 @@ public class ProxyServlet extends HttpServlet {
      */
     private String stringProxyQuery = "";
     /**
-     * The maximum size for uploaded files in bytes. Default value is 5MB.
+     * The (optional) backend servers to spread requests over instead of
+     * the proxy host, like "host1:8080*3,host2:8080" where the number after
+     * the '*' is the weight. Default value is "", for just the proxy host.
+     */
+    private String stringProxyBackends = "";
+    /**
+     * How the backend for a request is picked: "leastOutstanding" or
+     * "roundRobin". Default value is "leastOutstanding".
+     */
+    private String stringLoadBalancing = BackendPool.LEAST_OUTSTANDING;
+    /**
+     * How many failed requests in a row take a backend out. Default value
+     * is 3.
+     */
+    private int intMaxFails = 3;
+    /**
+     * How long a backend taken out by failed requests stays out, in
+     * milliseconds. Default value is 30 seconds.
+     */
+    private int intEjectTime = 30000;
+    /**
+     * The (optional) path to GET on each backend to check its health.
+     * Default value is "", for no health checks.
+     */
+    private String stringHealthCheckPath = "";
+    /**
+     * The time between health checks, in milliseconds. Default value is 10
+     * seconds.
+     */
+    private int intHealthCheckInterval = 10000;
+    /**
+     * The maximum size for uploaded files in bytes. When multipart bodies
+     * are streamed this is the limit for the whole request body rather than
+     * for each file. Default value is 5MB.
      */
     private int intMaxFileUploadSize = 5 * 1024 * 1024;
+    /**
+     * Whether multipart bodies are passed on as they arrive instead of being
+     * parsed and rebuilt. Default value is true.
+     */
+    private boolean booleanStreamMultipart = true;
+    
+    // Connection pool params
+    /**
+     * The maximum number of pooled connections to, and requests waiting
+     * on, each backend. Default value is 20.
+     */
+    private int intMaxConnectionsPerHost = 20;
+    /**
+     * The maximum number of pooled connections altogether. Default value is 100.
+     */
+    private int intMaxTotalConnections = 100;
+    /**
+     * How long to wait for a connection to the proxy host to be established (msec).
+     * Default value is 5 seconds.
+     */
+    private int intConnectTimeout = 5000;
+    /**
+     * How long to wait for data from the proxy host before giving up (msec).
+     * Default value is 60 seconds.
+     */
+    private int intSocketTimeout = 60000;
+    /**
+     * How long a pooled connection may sit unused before it is closed (msec).
+     * Default value is 60 seconds.
+     */
+    private int intIdleConnectionTimeout = 60000;
+    
+    // Concurrency params
+    /**
+     * The maximum number of requests waiting on all the backends at once.
+     * Default value is maxConnectionsPerHost for each backend.
+     */
+    private int intMaxConcurrentRequests = -1;
+    /**
+     * The maximum number of asynchronous requests waiting for their turn.
+     * Default value is 100.
+     */
+    private int intMaxQueuedRequests = 100;
+    /**
+     * Whether GET and DELETE requests give their container thread back
+     * while the proxy host works on them. Default value is false.
+     */
+    private boolean booleanAsyncProxy = false;
+    /**
+     * How long an asynchronous request may wait for the proxy host before
+     * the client gets a 504 (msec). Default value is 60 seconds.
+     */
+    private int intAsyncTimeout = 60000;
+    
+    /**
+     * Limits the number of synchronous requests waiting on the proxy host
+     */
+    private Semaphore semaphoreConcurrentRequests;
+    /**
+     * Runs asynchronous requests; its size limits the number of them
+     * waiting on the proxy host
+     */
+    private ThreadPoolExecutor threadPoolExecutorAsync;
+    
+    // Cache params
+    /**
+     * The memory budget of the backend response cache, in bytes. Default
+     * value is 0, which turns the cache off unless there is a cache directory.
+     */
+    private long longCacheMemoryBytes = 0;
+    /**
+     * The directory for the disk tier of the backend response cache. Default
+     * value is "", for no disk tier.
+     */
+    private String stringCacheDirectory = "";
+    /**
+     * The disk budget of the backend response cache, in bytes. Default value
+     * is 100MB.
+     */
+    private long longCacheDiskBytes = 100 * 1024 * 1024;
+    
+    /**
+     * The backend response cache, or null if caching is off
+     */
+    private ProxyCache proxyCache;
+    
+    /**
+     * The backends requests are sent to
+     */
+    private BackendPool backendPool;
+    
+    /**
+     * Whether identical GETs that are at the proxy host at the same time
+     * share one request to it. Default value is true.
+     */
+    private boolean booleanCoalesceRequests = true;
+    /**
+     * The biggest response body that is shared between identical GETs, in
+     * bytes. Default value is 1MB.
+     */
+    private int intCoalesceMaxBytes = 1024 * 1024;
+    /**
+     * Keeps track of the GETs in flight, or null if coalescing is off
+     */
+    private RequestCoalescer requestCoalescer;
+    
+    /**
+     * The client used for all proxy requests, so that connections to the
+     * proxy host are kept alive and reused between requests
+     */
+    private HttpClient httpClient;
+    /**
+     * The connection pool behind the client
+     */
+    private MultiThreadedHttpConnectionManager multiThreadedHttpConnectionManager;
+    /**
+     * Closes pooled connections that have been idle for too long
+     */
+    private IdleConnectionTimeoutThread idleConnectionTimeoutThread;
     
     /**
      * Initialize the <code>ProxyServlet</code>
@@ -98,10 +302,9 @@ public class ProxyServlet extends HttpServlet {
     public void init(ServletConfig servletConfig) {
         // Get the proxy host
         String stringProxyHostNew = servletConfig.getInitParameter("proxyHost");
-        if(stringProxyHostNew == null || stringProxyHostNew.length() == 0) { 
-            throw new IllegalArgumentException("Proxy host not set, please set init-param 'proxyHost' in web.xml");
+        if(stringProxyHostNew != null && stringProxyHostNew.length() > 0) {
+            this.setProxyHost(stringProxyHostNew);
         }
-        this.setProxyHost(stringProxyHostNew);
         // Get the proxy port if specified
         String stringProxyPortNew = servletConfig.getInitParameter("proxyPort");
         if(stringProxyPortNew != null && stringProxyPortNew.length() > 0) {
@@ -117,11 +320,194 @@ public class ProxyServlet extends HttpServlet {
         if(stringProxyQueryNew != null && stringProxyQueryNew.length() > 0) {
             this.setProxyQuery(stringProxyQueryNew);
         }
+        // Get the backend settings if specified
+        String stringProxyBackendsNew = servletConfig.getInitParameter("proxyBackends");
+        if(stringProxyBackendsNew != null && stringProxyBackendsNew.length() > 0) {
+            this.setProxyBackends(stringProxyBackendsNew);
+        }
+        String stringLoadBalancingNew = servletConfig.getInitParameter("loadBalancing");
+        if(stringLoadBalancingNew != null && stringLoadBalancingNew.length() > 0) {
+            this.setLoadBalancing(stringLoadBalancingNew);
+        }
+        String stringMaxFails = servletConfig.getInitParameter("maxFails");
+        if(stringMaxFails != null && stringMaxFails.length() > 0) {
+            this.setMaxFails(Integer.parseInt(stringMaxFails));
+        }
+        String stringEjectTime = servletConfig.getInitParameter("ejectTime");
+        if(stringEjectTime != null && stringEjectTime.length() > 0) {
+            this.setEjectTime(Integer.parseInt(stringEjectTime));
+        }
+        String stringHealthCheckPathNew = servletConfig.getInitParameter("healthCheckPath");
+        if(stringHealthCheckPathNew != null && stringHealthCheckPathNew.length() > 0) {
+            this.setHealthCheckPath(stringHealthCheckPathNew);
+        }
+        String stringHealthCheckInterval = servletConfig.getInitParameter("healthCheckInterval");
+        if(stringHealthCheckInterval != null && stringHealthCheckInterval.length() > 0) {
+            this.setHealthCheckInterval(Integer.parseInt(stringHealthCheckInterval));
+        }
+        List<BackendPool.Backend> listBackends;
+        if(this.getProxyBackends().length() > 0) {
+            listBackends = BackendPool.parse(this.getProxyBackends(), this.getProxyPort());
+            // The proxy host only stands in for the backend in the URL and
+            // Host header until one is picked
+            if(this.getProxyHost() == null) {
+                this.setProxyHost(listBackends.get(0).getHost());
+                this.setProxyPort(listBackends.get(0).getPort());
+            }
+        } else {
+            if(this.getProxyHost() == null) {
+                throw new IllegalArgumentException("Proxy host not set, please set init-param 'proxyHost' or 'proxyBackends' in web.xml");
+            }
+            listBackends = new ArrayList<BackendPool.Backend>();
+            listBackends.add(new BackendPool.Backend(this.getProxyHost(), this.getProxyPort(), 1));
+        }
         // Get the maximum file upload size if specified
         String stringMaxFileUploadSize = servletConfig.getInitParameter("maxFileUploadSize");
         if(stringMaxFileUploadSize != null && stringMaxFileUploadSize.length() > 0) {
             this.setMaxFileUploadSize(Integer.parseInt(stringMaxFileUploadSize));
         }
+        // Get the multipart mode if specified
+        String stringStreamMultipart = servletConfig.getInitParameter("streamMultipart");
+        if(stringStreamMultipart != null && stringStreamMultipart.length() > 0) {
+            this.setStreamMultipart(Boolean.parseBoolean(stringStreamMultipart));
+        }
+        // Get the connection pool settings if specified
+        String stringMaxConnectionsPerHost = servletConfig.getInitParameter("maxConnectionsPerHost");
+        if(stringMaxConnectionsPerHost != null && stringMaxConnectionsPerHost.length() > 0) {
+            this.setMaxConnectionsPerHost(Integer.parseInt(stringMaxConnectionsPerHost));
+        }
+        String stringMaxTotalConnections = servletConfig.getInitParameter("maxTotalConnections");
+        if(stringMaxTotalConnections != null && stringMaxTotalConnections.length() > 0) {
+            this.setMaxTotalConnections(Integer.parseInt(stringMaxTotalConnections));
+        }
+        String stringConnectTimeout = servletConfig.getInitParameter("connectTimeout");
+        if(stringConnectTimeout != null && stringConnectTimeout.length() > 0) {
+            this.setConnectTimeout(Integer.parseInt(stringConnectTimeout));
+        }
+        String stringSocketTimeout = servletConfig.getInitParameter("socketTimeout");
+        if(stringSocketTimeout != null && stringSocketTimeout.length() > 0) {
+            this.setSocketTimeout(Integer.parseInt(stringSocketTimeout));
+        }
+        String stringIdleConnectionTimeout = servletConfig.getInitParameter("idleConnectionTimeout");
+        if(stringIdleConnectionTimeout != null && stringIdleConnectionTimeout.length() > 0) {
+            this.setIdleConnectionTimeout(Integer.parseInt(stringIdleConnectionTimeout));
+        }
+        // Get the concurrency settings if specified
+        String stringMaxConcurrentRequests = servletConfig.getInitParameter("maxConcurrentRequests");
+        if(stringMaxConcurrentRequests != null && stringMaxConcurrentRequests.length() > 0) {
+            this.setMaxConcurrentRequests(Integer.parseInt(stringMaxConcurrentRequests));
+        }
+        String stringMaxQueuedRequests = servletConfig.getInitParameter("maxQueuedRequests");
+        if(stringMaxQueuedRequests != null && stringMaxQueuedRequests.length() > 0) {
+            this.setMaxQueuedRequests(Integer.parseInt(stringMaxQueuedRequests));
+        }
+        String stringAsyncProxy = servletConfig.getInitParameter("asyncProxy");
+        if(stringAsyncProxy != null && stringAsyncProxy.length() > 0) {
+            this.setAsyncProxy(Boolean.parseBoolean(stringAsyncProxy));
+        }
+        String stringAsyncTimeout = servletConfig.getInitParameter("asyncTimeout");
+        if(stringAsyncTimeout != null && stringAsyncTimeout.length() > 0) {
+            this.setAsyncTimeout(Integer.parseInt(stringAsyncTimeout));
+        }
+        if(this.getMaxConcurrentRequests() <= 0) {
+            this.setMaxConcurrentRequests(this.getMaxConnectionsPerHost() * listBackends.size());
+        }
+        this.semaphoreConcurrentRequests = new Semaphore(this.getMaxConcurrentRequests());
+        // Each backend gets its own share, so a slow one can't take them all
+        this.backendPool = new BackendPool(listBackends, this.getLoadBalancing(), this.getMaxFails(), this.getEjectTime(),
+                this.getMaxConnectionsPerHost());
+        if(this.getAsyncProxy()) {
+            this.threadPoolExecutorAsync = new ThreadPoolExecutor(
+                    this.getMaxConcurrentRequests(),
+                    this.getMaxConcurrentRequests(),
+                    60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(this.getMaxQueuedRequests()),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "golf-proxy-async");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }
+            );
+        }
+        // Get the cache settings if specified
+        String stringCacheMemoryBytes = servletConfig.getInitParameter("cacheMemoryBytes");
+        if(stringCacheMemoryBytes != null && stringCacheMemoryBytes.length() > 0) {
+            this.setCacheMemoryBytes(Long.parseLong(stringCacheMemoryBytes));
+        }
+        String stringCacheDirectoryNew = servletConfig.getInitParameter("cacheDirectory");
+        if(stringCacheDirectoryNew != null && stringCacheDirectoryNew.length() > 0) {
+            this.setCacheDirectory(stringCacheDirectoryNew);
+        }
+        String stringCacheDiskBytes = servletConfig.getInitParameter("cacheDiskBytes");
+        if(stringCacheDiskBytes != null && stringCacheDiskBytes.length() > 0) {
+            this.setCacheDiskBytes(Long.parseLong(stringCacheDiskBytes));
+        }
+        if(this.getCacheMemoryBytes() > 0 || this.getCacheDirectory().length() > 0) {
+            this.proxyCache = new ProxyCache(
+                    this.getCacheMemoryBytes(),
+                    (this.getCacheDirectory().length() > 0 ? new File(this.getCacheDirectory()) : null),
+                    this.getCacheDiskBytes()
+            );
+        }
+        // Get the coalescing settings if specified
+        String stringCoalesceRequests = servletConfig.getInitParameter("coalesceRequests");
+        if(stringCoalesceRequests != null && stringCoalesceRequests.length() > 0) {
+            this.setCoalesceRequests(Boolean.parseBoolean(stringCoalesceRequests));
+        }
+        String stringCoalesceMaxBytes = servletConfig.getInitParameter("coalesceMaxBytes");
+        if(stringCoalesceMaxBytes != null && stringCoalesceMaxBytes.length() > 0) {
+            this.setCoalesceMaxBytes(Integer.parseInt(stringCoalesceMaxBytes));
+        }
+        if(this.getCoalesceRequests()) {
+            this.requestCoalescer = new RequestCoalescer(this.getCoalesceMaxBytes());
+        }
+        // Set up the shared client and its connection pool
+        this.multiThreadedHttpConnectionManager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams httpConnectionManagerParams = this.multiThreadedHttpConnectionManager.getParams();
+        httpConnectionManagerParams.setDefaultMaxConnectionsPerHost(this.getMaxConnectionsPerHost());
+        httpConnectionManagerParams.setMaxTotalConnections(this.getMaxTotalConnections());
+        httpConnectionManagerParams.setConnectionTimeout(this.getConnectTimeout());
+        httpConnectionManagerParams.setSoTimeout(this.getSocketTimeout());
+        // The proxy host may have closed a connection while it sat in the pool
+        httpConnectionManagerParams.setStaleCheckingEnabled(true);
+        this.httpClient = new HttpClient(this.multiThreadedHttpConnectionManager);
+        // Don't wait forever for a free connection when the pool is exhausted
+        this.httpClient.getParams().setConnectionManagerTimeout(this.getSocketTimeout());
+        // Close connections nobody has used for a while
+        this.idleConnectionTimeoutThread = new IdleConnectionTimeoutThread();
+        this.idleConnectionTimeoutThread.setName("golf-proxy-idle-reaper");
+        this.idleConnectionTimeoutThread.setConnectionTimeout(this.getIdleConnectionTimeout());
+        this.idleConnectionTimeoutThread.setTimeoutInterval(Math.max(1000, this.getIdleConnectionTimeout() / 2));
+        this.idleConnectionTimeoutThread.addConnectionManager(this.multiThreadedHttpConnectionManager);
+        this.idleConnectionTimeoutThread.start();
+        // Check on the backends if asked to
+        if(this.getHealthCheckPath().length() > 0) {
+            this.backendPool.startProbes(this.httpClient, this.getHealthCheckPath(),
+                    this.getHealthCheckInterval(), this.getConnectTimeout());
+        }
+    }
+    
+    /**
+     * Shut down the connection pool
+     */
+    public void destroy() {
+        if(this.backendPool != null) {
+            this.backendPool.stop();
+        }
+        if(this.proxyCache != null) {
+            this.proxyCache.clear();
+        }
+        if(this.threadPoolExecutorAsync != null) {
+            this.threadPoolExecutorAsync.shutdownNow();
+        }
+        if(this.idleConnectionTimeoutThread != null) {
+            this.idleConnectionTimeoutThread.shutdown();
+        }
+        if(this.multiThreadedHttpConnectionManager != null) {
+            this.multiThreadedHttpConnectionManager.shutdown();
+        }
     }
     
     /**
@@ -134,12 +520,26 @@ public class ProxyServlet extends HttpServlet {
      */
     public void doGet (HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse)
             throws IOException, ServletException {
+        // Finish the request if this is it coming back from the proxy host
+        if(this.resumeAsyncProxyRequest(httpServletRequest, httpServletResponse)) {
+            return;
+        }
+        String stringProxyURL = this.getProxyURL(httpServletRequest);
+        // Answer from the cache if we can
+        if(this.serveFromCache(stringProxyURL, httpServletRequest, httpServletResponse)) {
+            return;
+        }
         // Create a GET request
-        GetMethod getMethodProxyRequest = new GetMethod(this.getProxyURL(httpServletRequest));
+        GetMethod getMethodProxyRequest = new GetMethod(stringProxyURL);
         // Forward the request headers
         setProxyRequestHeaders(httpServletRequest, getMethodProxyRequest);
+        this.setCacheValidators(httpServletRequest, getMethodProxyRequest);
+        // Share the response of an identical request already at the proxy host
+        if(this.joinFlight(stringProxyURL, getMethodProxyRequest, httpServletRequest, httpServletResponse)) {
+            return;
+        }
         // Execute the proxy request
-        this.executeProxyRequest(getMethodProxyRequest, httpServletRequest, httpServletResponse);
+        this.executeProxyRequestAsync(getMethodProxyRequest, httpServletRequest, httpServletResponse);
     }
     
     /**
@@ -152,12 +552,18 @@ public class ProxyServlet extends HttpServlet {
      */
     public void doDelete (HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse)
             throws IOException, ServletException {
+        // Finish the request if this is it coming back from the proxy host
+        if(this.resumeAsyncProxyRequest(httpServletRequest, httpServletResponse)) {
+            return;
+        }
         // Create a DELETE request
         DeleteMethod delMethodProxyRequest = new DeleteMethod(this.getProxyURL(httpServletRequest));
+        // Whatever the cache has for this url is about to be out of date
+        this.invalidateCache(delMethodProxyRequest);
         // Forward the request headers
         setProxyRequestHeaders(httpServletRequest, delMethodProxyRequest);
         // Execute the proxy request
-        this.executeProxyRequest(delMethodProxyRequest, httpServletRequest, httpServletResponse);
+        this.executeProxyRequestAsync(delMethodProxyRequest, httpServletRequest, httpServletResponse);
     }
     
     /**
@@ -172,81 +578,26 @@ public class ProxyServlet extends HttpServlet {
             throws IOException, ServletException {
         // Create a standard PUT request
         PutMethod putMethodProxyRequest = new PutMethod(this.getProxyURL(httpServletRequest));
+        // Whatever the cache has for this url is about to be out of date
+        this.invalidateCache(putMethodProxyRequest);
         // Forward the request headers
         setProxyRequestHeaders(httpServletRequest, putMethodProxyRequest);
-        // Check if this is a mulitpart (file upload) PUT
-        if(ServletFileUpload.isMultipartContent(httpServletRequest)) {
-            this.handleMultipartPut(putMethodProxyRequest, httpServletRequest);
-        } else {
-            this.handleStandardPut(putMethodProxyRequest, httpServletRequest);
-        }
-        // Execute the proxy request
-        this.executeProxyRequest(putMethodProxyRequest, httpServletRequest, httpServletResponse);
-    }
-    
-    /**
-     * Sets up the given {@link PutMethod} to send the same multipart PUT
-     * data as was sent in the given {@link HttpServletRequest}
-     * @param putMethodProxyRequest The {@link PutMethod} that we are
-     *                                configuring to send a multipart PUT request
-     * @param httpServletRequest The {@link HttpServletRequest} that contains
-     *                            the mutlipart PUT data to be sent via the {@link PutMethod}
-     */
-    @SuppressWarnings("unchecked")
-    private void handleMultipartPut(PutMethod putMethodProxyRequest, HttpServletRequest httpServletRequest)
-            throws ServletException {
-        // Create a factory for disk-based file items
-        DiskFileItemFactory diskFileItemFactory = new DiskFileItemFactory();
-        // Set factory constraints
-        diskFileItemFactory.setSizeThreshold(this.getMaxFileUploadSize());
-        diskFileItemFactory.setRepository(FILE_UPLOAD_TEMP_DIRECTORY);
-        // Create a new file upload handler
-        ServletFileUpload servletFileUpload = new ServletFileUpload(diskFileItemFactory);
-        // Parse the request
+        List<FileItem> listFileItems = null;
         try {
-            // Get the multipart items as a list
-            List<FileItem> listFileItems = (List<FileItem>) servletFileUpload.parseRequest(httpServletRequest);
-            // Create a list to hold all of the parts
-            List<Part> listParts = new ArrayList<Part>();
-            // Iterate the multipart items list
-            for(FileItem fileItemCurrent : listFileItems) {
-                // If the current item is a form field, then create a string part
-                if (fileItemCurrent.isFormField()) {
-                    StringPart stringPart = new StringPart(
-                            fileItemCurrent.getFieldName(), // The field name
-                            fileItemCurrent.getString()     // The field value
-                    );
-                    // Add the part to the list
-                    listParts.add(stringPart);
-                } else {
-                    // The item is a file upload, so we create a FilePart
-                    FilePart filePart = new FilePart(
-                            fileItemCurrent.getFieldName(),    // The field name
-                            new ByteArrayPartSource(
-                                    fileItemCurrent.getName(), // The uploaded file name
-                                    fileItemCurrent.get()      // The uploaded file contents
-                            )
-                    );
-                    // Add the part to the list
-                    listParts.add(filePart);
-                }
+            // Check if this is a mulitpart (file upload) PUT
+            if(ServletFileUpload.isMultipartContent(httpServletRequest)) {
+                listFileItems = this.handleMultipart(putMethodProxyRequest, httpServletRequest);
+            } else {
+                this.handleStandardPut(putMethodProxyRequest, httpServletRequest);
             }
-            MultipartRequestEntity multipartRequestEntity = new MultipartRequestEntity(
-                                                                listParts.toArray(new Part[] {}),
-                                                                putMethodProxyRequest.getParams()
-                                                            );
-            putMethodProxyRequest.setRequestEntity(multipartRequestEntity);
-            // The current content-type header (received from the client) IS of
-            // type "multipart/form-data", but the content-type header also
-            // contains the chunk boundary string of the chunks. Currently, this
-            // header is using the boundary of the client request, since we
-            // blindly copied all headers from the client request to the proxy
-            // request. However, we are creating a new request with a new chunk
-            // boundary string, so it is necessary that we re-set the
-            // content-type string to reflect the new chunk boundary string
-            putMethodProxyRequest.setRequestHeader(STRING_CONTENT_TYPE_HEADER_NAME, multipartRequestEntity.getContentType());
-        } catch (FileUploadException fileUploadException) {
-            throw new ServletException(fileUploadException);
+            // Execute the proxy request
+            this.executeProxyRequest(putMethodProxyRequest, httpServletRequest, httpServletResponse);
+        } catch (IOException ioException) {
+            if(!this.sendTooLarge(httpServletRequest, httpServletResponse)) {
+                throw ioException;
+            }
+        } finally {
+            deleteFileItems(listFileItems);
         }
     }
     
@@ -275,8 +626,10 @@ public class ProxyServlet extends HttpServlet {
                 listNameValuePairs.add(nameValuePair);
             }
         }
-        // Set the proxy request PUT data 
-        putMethodProxyRequest.setRequestEntity(new InputStreamRequestEntity(httpServletRequest.getInputStream()));
+        // Set the proxy request PUT data, streamed with the client's length
+        // rather than buffered to find it out
+        putMethodProxyRequest.setRequestEntity(new InputStreamRequestEntity(
+                httpServletRequest.getInputStream(), httpServletRequest.getContentLength()));
     }
     
     /**
@@ -291,36 +644,78 @@ public class ProxyServlet extends HttpServlet {
             throws IOException, ServletException {
         // Create a standard POST request
         PostMethod postMethodProxyRequest = new PostMethod(this.getProxyURL(httpServletRequest));
+        // Whatever the cache has for this url is about to be out of date
+        this.invalidateCache(postMethodProxyRequest);
         // Forward the request headers
         setProxyRequestHeaders(httpServletRequest, postMethodProxyRequest);
-        // Check if this is a mulitpart (file upload) POST
-        if(ServletFileUpload.isMultipartContent(httpServletRequest)) {
-            this.handleMultipartPost(postMethodProxyRequest, httpServletRequest);
-        } else {
-            this.handleStandardPost(postMethodProxyRequest, httpServletRequest);
+        List<FileItem> listFileItems = null;
+        try {
+            // Check if this is a mulitpart (file upload) POST
+            if(ServletFileUpload.isMultipartContent(httpServletRequest)) {
+                listFileItems = this.handleMultipart(postMethodProxyRequest, httpServletRequest);
+            } else {
+                this.handleStandardPost(postMethodProxyRequest, httpServletRequest);
+            }
+            // Execute the proxy request
+            this.executeProxyRequest(postMethodProxyRequest, httpServletRequest, httpServletResponse);
+        } catch (IOException ioException) {
+            if(!this.sendTooLarge(httpServletRequest, httpServletResponse)) {
+                throw ioException;
+            }
+        } finally {
+            deleteFileItems(listFileItems);
         }
-        // Execute the proxy request
-        this.executeProxyRequest(postMethodProxyRequest, httpServletRequest, httpServletResponse);
     }
     
     /**
-     * Sets up the given {@link PostMethod} to send the same multipart POST
-     * data as was sent in the given {@link HttpServletRequest}
-     * @param postMethodProxyRequest The {@link PostMethod} that we are
-     *                                configuring to send a multipart POST request
+     * Sets up the given {@link EntityEnclosingMethod} to send the same
+     * multipart data as was sent in the given {@link HttpServletRequest}.
+     * When streaming, the body is passed on untouched as it arrives from
+     * the client. Otherwise it is parsed, with the uploaded files kept on
+     * disk, and sent as a new multipart body that reads the files back as
+     * it goes.
+     * @param entityEnclosingMethodProxyRequest The POST or PUT request that
+     *                                           we are configuring
      * @param httpServletRequest The {@link HttpServletRequest} that contains
-     *                            the mutlipart POST data to be sent via the {@link PostMethod}
+     *                            the mutlipart data to be sent
+     * @return The parsed items, whose temporary files must be deleted when
+     *          the proxy request is done (empty when streaming)
      */
     @SuppressWarnings("unchecked")
-    private void handleMultipartPost(PostMethod postMethodProxyRequest, HttpServletRequest httpServletRequest)
-            throws ServletException {
-        // Create a factory for disk-based file items
+    private List<FileItem> handleMultipart(EntityEnclosingMethod entityEnclosingMethodProxyRequest, HttpServletRequest httpServletRequest)
+            throws IOException, ServletException {
+        if(this.getStreamMultipart()) {
+            // The client's Content-Type header, boundary and all, was
+            // already copied onto the proxy request, so the body can go
+            // through as it is, up to the maximum upload size
+            final HttpServletRequest httpServletRequestUpload = httpServletRequest;
+            if(httpServletRequest.getContentLength() > this.getMaxFileUploadSize()) {
+                httpServletRequest.setAttribute(STRING_TOO_LARGE_ATTRIBUTE, Boolean.TRUE);
+                throw new IOException("Upload is bigger than " + this.getMaxFileUploadSize() + " bytes");
+            }
+            InputStream inputStreamLimited = new LimitedInputStream(
+                    httpServletRequest.getInputStream(), this.getMaxFileUploadSize()) {
+                protected void raiseError(long longSizeMax, long longCount) throws IOException {
+                    httpServletRequestUpload.setAttribute(STRING_TOO_LARGE_ATTRIBUTE, Boolean.TRUE);
+                    throw new IOException("Upload is bigger than " + longSizeMax + " bytes");
+                }
+            };
+            entityEnclosingMethodProxyRequest.setRequestEntity(new InputStreamRequestEntity(
+                    inputStreamLimited,
+                    httpServletRequest.getContentLength(),
+                    httpServletRequest.getContentType()
+            ));
+            return new ArrayList<FileItem>();
+        }
+        // Create a factory for disk-based file items, keeping only small
+        // items in memory
         DiskFileItemFactory diskFileItemFactory = new DiskFileItemFactory();
         // Set factory constraints
-        diskFileItemFactory.setSizeThreshold(this.getMaxFileUploadSize());
+        diskFileItemFactory.setSizeThreshold(DiskFileItemFactory.DEFAULT_SIZE_THRESHOLD);
         diskFileItemFactory.setRepository(FILE_UPLOAD_TEMP_DIRECTORY);
         // Create a new file upload handler
         ServletFileUpload servletFileUpload = new ServletFileUpload(diskFileItemFactory);
+        servletFileUpload.setFileSizeMax(this.getMaxFileUploadSize());
         // Parse the request
         try {
             // Get the multipart items as a list
@@ -339,12 +734,10 @@ public class ProxyServlet extends HttpServlet {
                     listParts.add(stringPart);
                 } else {
                     // The item is a file upload, so we create a FilePart
+                    // that reads the item back from wherever it was stored
                     FilePart filePart = new FilePart(
                             fileItemCurrent.getFieldName(),    // The field name
-                            new ByteArrayPartSource(
-                                    fileItemCurrent.getName(), // The uploaded file name
-                                    fileItemCurrent.get()      // The uploaded file contents
-                            )
+                            new FileItemPartSource(fileItemCurrent)
                     );
                     // Add the part to the list
                     listParts.add(filePart);
@@ -352,9 +745,9 @@ public class ProxyServlet extends HttpServlet {
             }
             MultipartRequestEntity multipartRequestEntity = new MultipartRequestEntity(
                                                                 listParts.toArray(new Part[] {}),
-                                                                postMethodProxyRequest.getParams()
+                                                                entityEnclosingMethodProxyRequest.getParams()
                                                             );
-            postMethodProxyRequest.setRequestEntity(multipartRequestEntity);
+            entityEnclosingMethodProxyRequest.setRequestEntity(multipartRequestEntity);
             // The current content-type header (received from the client) IS of
             // type "multipart/form-data", but the content-type header also
             // contains the chunk boundary string of the chunks. Currently, this
@@ -363,12 +756,70 @@ public class ProxyServlet extends HttpServlet {
             // request. However, we are creating a new request with a new chunk
             // boundary string, so it is necessary that we re-set the
             // content-type string to reflect the new chunk boundary string
-            postMethodProxyRequest.setRequestHeader(STRING_CONTENT_TYPE_HEADER_NAME, multipartRequestEntity.getContentType());
+            entityEnclosingMethodProxyRequest.setRequestHeader(STRING_CONTENT_TYPE_HEADER_NAME, multipartRequestEntity.getContentType());
+            return listFileItems;
         } catch (FileUploadException fileUploadException) {
             throw new ServletException(fileUploadException);
         }
     }
     
+    /**
+     * Answers with a 413 if the request failed because a streamed upload
+     * was too big
+     * @param httpServletRequest The client request
+     * @param httpServletResponse An object by which we can send the error
+     * @return true if the error has been sent
+     * @throws IOException If the error can't be sent
+     */
+    private boolean sendTooLarge(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse)
+            throws IOException {
+        if(httpServletRequest.getAttribute(STRING_TOO_LARGE_ATTRIBUTE) == null
+                || httpServletResponse.isCommitted()) {
+            return false;
+        }
+        httpServletResponse.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                "Uploads are limited to " + this.getMaxFileUploadSize() + " bytes");
+        return true;
+    }
+    
+    /**
+     * Deletes the temporary storage of parsed multipart items
+     * @param listFileItems The items returned by handleMultipart, or null
+     */
+    private static void deleteFileItems(List<FileItem> listFileItems) {
+        if(listFileItems == null) {
+            return;
+        }
+        for(FileItem fileItemCurrent : listFileItems) {
+            fileItemCurrent.delete();
+        }
+    }
+    
+    /**
+     * A {@link PartSource} that reads an uploaded file from its
+     * {@link FileItem}, so a file kept on disk doesn't have to be loaded
+     * into memory to be sent on
+     */
+    private static class FileItemPartSource implements PartSource {
+        /**
+         * The uploaded file
+         */
+        private final FileItem fileItem;
+        
+        public FileItemPartSource(FileItem fileItemNew) {
+            this.fileItem = fileItemNew;
+        }
+        public long getLength() {
+            return this.fileItem.getSize();
+        }
+        public String getFileName() {
+            return this.fileItem.getName();
+        }
+        public InputStream createInputStream() throws IOException {
+            return this.fileItem.getInputStream();
+        }
+    }
+    
     /**
      * Sets up the given {@link PostMethod} to send the same standard POST
      * data as was sent in the given {@link HttpServletRequest}
@@ -397,7 +848,10 @@ public class ProxyServlet extends HttpServlet {
         // Set the proxy request POST data 
         postMethodProxyRequest.setRequestBody(listNameValuePairs.toArray(new NameValuePair[] { }));
         */
-        postMethodProxyRequest.setRequestEntity(new InputStreamRequestEntity(httpServletRequest.getInputStream()));
+        // Stream the body with the client's length rather than buffering it
+        // to find it out
+        postMethodProxyRequest.setRequestEntity(new InputStreamRequestEntity(
+                httpServletRequest.getInputStream(), httpServletRequest.getContentLength()));
     }
     
     /**
@@ -414,11 +868,313 @@ public class ProxyServlet extends HttpServlet {
             HttpServletRequest httpServletRequest,
             HttpServletResponse httpServletResponse)
                 throws IOException, ServletException {
-        // Create a default HttpClient
-        HttpClient httpClient = new HttpClient();
         httpMethodProxyRequest.setFollowRedirects(false);
-        // Execute the request
-        int intProxyResponseCode = httpClient.executeMethod(httpMethodProxyRequest);
+        // Wait for our turn at the proxy host, but not forever
+        boolean booleanAcquired = false;
+        try {
+            booleanAcquired = this.semaphoreConcurrentRequests.tryAcquire(this.getSocketTimeout(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+        }
+        if(!booleanAcquired) {
+            this.abortFlight(httpServletRequest);
+            httpServletResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many requests to the proxy host");
+            return;
+        }
+        BackendPool.Backend backend = null;
+        try {
+            // Execute the request on one of the backends
+            backend = this.executeOnBackend(httpMethodProxyRequest);
+            if(backend == null) {
+                httpServletResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many requests to the proxy host");
+                return;
+            }
+            sendProxyResponse(httpMethodProxyRequest.getStatusCode(), httpMethodProxyRequest, httpServletRequest, httpServletResponse);
+        } finally {
+            this.releaseBackend(backend, httpMethodProxyRequest);
+            // Let any identical requests waiting on this one go, if it
+            // didn't get them a response
+            this.abortFlight(httpServletRequest);
+            // Hand the connection back to the pool
+            httpMethodProxyRequest.releaseConnection();
+            this.semaphoreConcurrentRequests.release();
+        }
+    }
+    
+    /**
+     * Executes the {@link HttpMethod} passed in without holding on to the
+     * container thread while the proxy host works on it, if asynchronous
+     * proxying is on. The request is run by the async thread pool and the
+     * client request is suspended with a Jetty continuation; when the
+     * proxy host's response headers arrive the client request is resumed
+     * and the body is copied by a container thread again. On containers
+     * without continuations the thread just waits.
+     * 
+     * The request must not have a body to send, since the client request
+     * can't be read while it is suspended.
+     * @param httpMethodProxyRequest An object representing the proxy request to be made
+     * @param httpServletRequest The client request
+     * @param httpServletResponse An object by which we can send the proxied
+     *                             response back to the client
+     * @throws IOException Can be thrown by the {@link HttpClient}.executeMethod
+     * @throws ServletException Can be thrown to indicate that another error has occurred
+     */
+    private void executeProxyRequestAsync(
+            HttpMethod httpMethodProxyRequest,
+            HttpServletRequest httpServletRequest,
+            HttpServletResponse httpServletResponse)
+                throws IOException, ServletException {
+        if(!this.getAsyncProxy()) {
+            this.executeProxyRequest(httpMethodProxyRequest, httpServletRequest, httpServletResponse);
+            return;
+        }
+        httpMethodProxyRequest.setFollowRedirects(false);
+        Continuation continuation = ContinuationSupport.getContinuation(httpServletRequest, null);
+        AsyncProxyRequest asyncProxyRequest = new AsyncProxyRequest(httpMethodProxyRequest, continuation);
+        continuation.setObject(asyncProxyRequest);
+        try {
+            this.threadPoolExecutorAsync.execute(asyncProxyRequest);
+        } catch (RejectedExecutionException rejectedExecutionException) {
+            continuation.setObject(null);
+            this.abortFlight(httpServletRequest);
+            httpServletResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many requests to the proxy host");
+            return;
+        }
+        // With a Jetty NIO connector this throws, the container thread goes
+        // off to do something else, and the request comes back through
+        // resumeAsyncProxyRequest. Otherwise it returns when the proxy host
+        // has answered or the time is up.
+        continuation.suspend(this.getAsyncTimeout());
+        continuation.setObject(null);
+        this.finishAsyncProxyRequest(asyncProxyRequest, httpServletRequest, httpServletResponse);
+    }
+    
+    /**
+     * Finishes an asynchronous proxy request whose client request was
+     * resumed by Jetty
+     * @param httpServletRequest The client request
+     * @param httpServletResponse An object by which we can send the proxied
+     *                             response back to the client
+     * @return true if the request was a resumed one and has been handled
+     * @throws IOException If the proxy request failed
+     * @throws ServletException If the response can't be sent
+     */
+    private boolean resumeAsyncProxyRequest(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse)
+            throws IOException, ServletException {
+        if(!this.getAsyncProxy()) {
+            return false;
+        }
+        Continuation continuation = ContinuationSupport.getContinuation(httpServletRequest, null);
+        // Requests waiting on a flight come back through joinFlight
+        if(!(continuation.getObject() instanceof AsyncProxyRequest)) {
+            return false;
+        }
+        AsyncProxyRequest asyncProxyRequest = (AsyncProxyRequest) continuation.getObject();
+        continuation.setObject(null);
+        this.finishAsyncProxyRequest(asyncProxyRequest, httpServletRequest, httpServletResponse);
+        return true;
+    }
+    
+    /**
+     * Sends the response to an asynchronous proxy request, or a 504 if the
+     * proxy host didn't answer in time
+     * @param asyncProxyRequest The asynchronous proxy request
+     * @param httpServletRequest The client request
+     * @param httpServletResponse An object by which we can send the proxied
+     *                             response back to the client
+     * @throws IOException If the proxy request failed
+     * @throws ServletException If the response can't be sent
+     */
+    private void finishAsyncProxyRequest(
+            AsyncProxyRequest asyncProxyRequest,
+            HttpServletRequest httpServletRequest,
+            HttpServletResponse httpServletResponse)
+                throws IOException, ServletException {
+        if(!asyncProxyRequest.finish()) {
+            this.abortFlight(httpServletRequest);
+            httpServletResponse.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT, "The proxy host took too long to answer");
+            return;
+        }
+        try {
+            if(asyncProxyRequest.ioException != null) {
+                throw asyncProxyRequest.ioException;
+            }
+            if(asyncProxyRequest.backend == null) {
+                httpServletResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many requests to the proxy host");
+                return;
+            }
+            sendProxyResponse(asyncProxyRequest.intResponseCode, asyncProxyRequest.httpMethod, httpServletRequest, httpServletResponse);
+        } finally {
+            this.abortFlight(httpServletRequest);
+            this.releaseBackend(asyncProxyRequest.backend, asyncProxyRequest.httpMethod);
+            // Hand the connection back to the pool
+            asyncProxyRequest.httpMethod.releaseConnection();
+        }
+    }
+    
+    /**
+     * A proxy request being run by the async thread pool on behalf of a
+     * suspended client request
+     */
+    private class AsyncProxyRequest implements Runnable {
+        /**
+         * The proxy request
+         */
+        private final HttpMethod httpMethod;
+        /**
+         * The suspended client request
+         */
+        private final Continuation continuation;
+        /**
+         * The backend that answered
+         */
+        private BackendPool.Backend backend;
+        /**
+         * The status code from the proxy host
+         */
+        private int intResponseCode = -1;
+        /**
+         * Why the proxy request failed, if it did
+         */
+        private IOException ioException;
+        /**
+         * Whether the proxy host has answered (or failed to)
+         */
+        private boolean booleanDone = false;
+        /**
+         * Whether the client request gave up waiting
+         */
+        private boolean booleanAbandoned = false;
+        
+        public AsyncProxyRequest(HttpMethod httpMethodNew, Continuation continuationNew) {
+            this.httpMethod = httpMethodNew;
+            this.continuation = continuationNew;
+        }
+        
+        public void run() {
+            try {
+                this.backend = executeOnBackend(this.httpMethod);
+                this.intResponseCode = this.httpMethod.getStatusCode();
+            } catch (IOException ioExceptionNew) {
+                this.ioException = ioExceptionNew;
+            }
+            boolean booleanAbandonedNow;
+            synchronized(this) {
+                this.booleanDone = true;
+                booleanAbandonedNow = this.booleanAbandoned;
+            }
+            if(booleanAbandonedNow) {
+                // Nobody is going to read the response
+                releaseBackend(this.backend, this.httpMethod);
+                this.httpMethod.releaseConnection();
+            } else {
+                this.continuation.resume();
+            }
+        }
+        
+        /**
+         * Called by the client request when it resumes
+         * @return true if the proxy host has answered, false if it hasn't
+         *          and the request has been abandoned
+         */
+        public boolean finish() {
+            synchronized(this) {
+                if(this.booleanDone) {
+                    return true;
+                }
+                this.booleanAbandoned = true;
+            }
+            this.httpMethod.abort();
+            return false;
+        }
+    }
+    
+    /**
+     * Executes a proxy request on a backend picked by the backend pool. If
+     * the backend can't be connected to and the request has no body, it
+     * is tried on the other backends. Only connect errors and errors after
+     * the request has been sent count against the backend; errors sending
+     * it are usually the client's, like an upload that is too large or a
+     * client that went away halfway through.
+     * @param httpMethodProxyRequest The request to execute
+     * @return The backend that answered, which must be handed back with
+     *          {@link #releaseBackend} once the response has been read, or
+     *          null if no backend had room for the request in time
+     * @throws IOException If no backend could be reached, or the request
+     *                      failed
+     */
+    private BackendPool.Backend executeOnBackend(HttpMethod httpMethodProxyRequest) throws IOException {
+        boolean booleanRetryable = !(httpMethodProxyRequest instanceof EntityEnclosingMethod);
+        int intTries = booleanRetryable ? this.backendPool.getBackends().length : 1;
+        BackendPool.Backend backend = null;
+        ConnectException connectExceptionLast = null;
+        for(int intTry = 1; ; intTry++) {
+            backend = this.backendPool.acquire(backend, this.getSocketTimeout());
+            if(backend == null) {
+                if(connectExceptionLast != null) {
+                    throw connectExceptionLast;
+                }
+                return null;
+            }
+            String stringQuery = httpMethodProxyRequest.getQueryString();
+            httpMethodProxyRequest.setURI(new URI("http://" + backend.getHostAndPort() + httpMethodProxyRequest.getPath()
+                    + (stringQuery == null ? "" : "?" + stringQuery), true));
+            if(httpMethodProxyRequest.getRequestHeader(STRING_HOST_HEADER_NAME) != null) {
+                httpMethodProxyRequest.setRequestHeader(STRING_HOST_HEADER_NAME, backend.getHostAndPort());
+            }
+            try {
+                this.httpClient.executeMethod(httpMethodProxyRequest);
+                return backend;
+            } catch (ConnectException connectException) {
+                this.backendPool.release(backend, false);
+                if(intTry >= intTries) {
+                    throw connectException;
+                }
+                connectExceptionLast = connectException;
+                httpMethodProxyRequest.releaseConnection();
+            } catch (IOException ioException) {
+                if(httpMethodProxyRequest.isRequestSent()) {
+                    this.backendPool.release(backend, false);
+                } else {
+                    this.backendPool.cancel(backend);
+                }
+                throw ioException;
+            }
+        }
+    }
+    
+    /**
+     * Hands a backend back to the backend pool once its response has been
+     * dealt with. Gateway errors count as the backend failing.
+     * @param backend The backend from {@link #executeOnBackend}, or null
+     * @param httpMethodProxyRequest The request it answered
+     */
+    private void releaseBackend(BackendPool.Backend backend, HttpMethod httpMethodProxyRequest) {
+        if(backend != null) {
+            int intStatusCode = httpMethodProxyRequest.getStatusCode();
+            this.backendPool.release(backend,
+                    intStatusCode != HttpServletResponse.SC_BAD_GATEWAY
+                    && intStatusCode != HttpServletResponse.SC_SERVICE_UNAVAILABLE
+                    && intStatusCode != HttpServletResponse.SC_GATEWAY_TIMEOUT);
+        }
+    }
+    
+    /**
+     * Sends the response to an executed proxy request back to the client
+     * @param intProxyResponseCode The status code from the proxy host
+     * @param httpMethodProxyRequest The executed proxy request
+     * @param httpServletRequest The client request
+     * @param httpServletResponse An object by which we can send the proxied
+     *                             response back to the client
+     * @throws IOException If the response can't be copied to the client
+     * @throws ServletException If a redirect has no location
+     */
+    private void sendProxyResponse(
+            int intProxyResponseCode,
+            HttpMethod httpMethodProxyRequest,
+            HttpServletRequest httpServletRequest,
+            HttpServletResponse httpServletResponse)
+                throws IOException, ServletException {
 
         // Check if the proxy response is a redirect
         // The following code is adapted from org.tigris.noodle.filters.CheckForRedirect
@@ -437,9 +1193,22 @@ public class ProxyServlet extends HttpServlet {
                 stringMyHostName += ":" + httpServletRequest.getServerPort();
             }
             stringMyHostName += httpServletRequest.getContextPath();
-            httpServletResponse.sendRedirect(stringLocation.replace(getProxyHostAndPort() + this.getProxyPath(), stringMyHostName));
+            // The backend that answered is the one the location points at
+            String stringBackendHostAndPort = httpMethodProxyRequest.getURI().getAuthority();
+            httpServletResponse.sendRedirect(stringLocation.replace(stringBackendHostAndPort + this.getProxyPath(), stringMyHostName));
             return;
         } else if(intProxyResponseCode == HttpServletResponse.SC_NOT_MODIFIED) {
+            // If this was us revalidating a cached response, the client gets
+            // the cached response
+            ProxyCache.Entry entry = (ProxyCache.Entry) httpServletRequest.getAttribute(STRING_CACHE_ENTRY_ATTRIBUTE);
+            if(entry != null) {
+                String stringCacheKey = (String) httpServletRequest.getAttribute(STRING_CACHE_KEY_ATTRIBUTE);
+                entry = this.proxyCache.refresh(stringCacheKey, entry, httpMethodProxyRequest.getResponseHeaders());
+                if(this.sendCachedResponse(stringCacheKey, entry, "REVALIDATED", httpServletRequest, httpServletResponse)) {
+                    return;
+                }
+                throw new ServletException("Cached response disappeared while being revalidated");
+            }
             // 304 needs special handling.  See:
             // http://www.ics.uci.edu/pub/ietf/http/rfc1945.html#Code304
             // We get a 304 whenever passed an 'If-Modified-Since'
@@ -454,20 +1223,385 @@ public class ProxyServlet extends HttpServlet {
         // Pass the response code back to the client
         httpServletResponse.setStatus(intProxyResponseCode);
 
-        // Pass response headers back to the client
+        // Pass response headers back to the client, except the ones that
+        // only concern the connection to the proxy host; the container
+        // takes care of the framing of our own response
         Header[] headerArrayResponse = httpMethodProxyRequest.getResponseHeaders();
+        List<Header> listHeadersSent = new ArrayList<Header>();
+        boolean booleanSetsCookie = false;
         for(Header header : headerArrayResponse) {
-            httpServletResponse.setHeader(header.getName(), header.getValue());
+            if(!isHopByHopHeader(header.getName())) {
+                httpServletResponse.setHeader(header.getName(), header.getValue());
+                listHeadersSent.add(header);
+            }
+            booleanSetsCookie |= header.getName().equalsIgnoreCase("Set-Cookie");
+        }
+        
+        // Identical requests waiting on this one get a copy of the
+        // response, unless it hands out a cookie, which must not be shared
+        RequestCoalescer.Flight flight = (RequestCoalescer.Flight) httpServletRequest.getAttribute(STRING_FLIGHT_ATTRIBUTE);
+        if(booleanSetsCookie) {
+            flight = null;
         }
         
         // Send the content to the client
         InputStream inputStreamProxyResponse = httpMethodProxyRequest.getResponseBodyAsStream();
-        BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStreamProxyResponse);
-        OutputStream outputStreamClientResponse = httpServletResponse.getOutputStream();
-        int intNextByte;
-        while ( ( intNextByte = bufferedInputStream.read() ) != -1 ) {
-            outputStreamClientResponse.write(intNextByte);
+        if(inputStreamProxyResponse == null) {
+            // No body (e.g. a 204 or a HEAD request)
+            if(flight != null) {
+                flight.land(intProxyResponseCode, listHeadersSent.toArray(new Header[0]));
+            }
+            return;
+        }
+        // The body length, if the proxy host told us
+        long longContentLength = -1;
+        Header headerContentLength = httpMethodProxyRequest.getResponseHeader(STRING_CONTENT_LENGTH_HEADER_NAME);
+        if(headerContentLength != null) {
+            try {
+                longContentLength = Long.parseLong(headerContentLength.getValue().trim());
+            } catch (NumberFormatException numberFormatException) {
+                // Treat it as unknown
+            }
+        }
+        // Keep a copy of the body if the response can be cached
+        ProxyCache.Recorder recorder = null;
+        String stringCacheKey = (String) httpServletRequest.getAttribute(STRING_CACHE_KEY_ATTRIBUTE);
+        if(stringCacheKey != null) {
+            recorder = this.proxyCache.record(stringCacheKey, intProxyResponseCode, headerArrayResponse);
+        }
+        OutputStream outputStreamCopy = recorder;
+        if(flight != null) {
+            outputStreamCopy = (recorder == null ? flight : new TeeOutputStream(recorder, flight));
+        }
+        try {
+            copyResponseBody(
+                    inputStreamProxyResponse,
+                    httpServletResponse.getOutputStream(),
+                    longContentLength,
+                    outputStreamCopy
+            );
+            if(recorder != null) {
+                recorder.commit();
+                recorder = null;
+            }
+            if(flight != null) {
+                flight.land(intProxyResponseCode, listHeadersSent.toArray(new Header[0]));
+            }
+        } finally {
+            if(recorder != null) {
+                recorder.abandon();
+            }
+            inputStreamProxyResponse.close();
+        }
+    }
+    
+    /**
+     * Answers a GET from the cache if there is a fresh response for it. If
+     * there is a stale one that can be revalidated, it is remembered for
+     * {@link #setCacheValidators}.
+     * @param stringProxyURL The url of the request to the proxy host
+     * @param httpServletRequest The client request
+     * @param httpServletResponse An object by which we can send the cached
+     *                             response back to the client
+     * @return true if the request has been answered
+     * @throws IOException If the response can't be sent
+     */
+    private boolean serveFromCache(String stringProxyURL, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse)
+            throws IOException {
+        if(this.proxyCache == null) {
+            return false;
+        }
+        String stringRequestCacheControl = httpServletRequest.getHeader("Cache-Control");
+        stringRequestCacheControl = (stringRequestCacheControl == null ? "" : stringRequestCacheControl.toLowerCase());
+        // Requests with credentials, or that don't want caching, go straight
+        // through. The key doesn't tell users apart, so a response to a
+        // request with cookies could be someone else's.
+        if(httpServletRequest.getHeader("Authorization") != null
+                || httpServletRequest.getHeader("Cookie") != null
+                || stringRequestCacheControl.indexOf("no-store") != -1) {
+            return false;
+        }
+        String stringCacheKey = ProxyCache.key(stringProxyURL, httpServletRequest.getHeader("Accept-Encoding"));
+        httpServletRequest.setAttribute(STRING_CACHE_KEY_ATTRIBUTE, stringCacheKey);
+        ProxyCache.Entry entry = this.proxyCache.get(stringCacheKey);
+        if(entry == null) {
+            return false;
+        }
+        boolean booleanRevalidate = stringRequestCacheControl.indexOf("no-cache") != -1
+                || stringRequestCacheControl.indexOf("max-age=0") != -1
+                || "no-cache".equalsIgnoreCase(httpServletRequest.getHeader("Pragma"));
+        if(entry.isFresh() && !booleanRevalidate
+                && this.sendCachedResponse(stringCacheKey, entry, "HIT", httpServletRequest, httpServletResponse)) {
+            return true;
+        }
+        if(entry.etag != null) {
+            httpServletRequest.setAttribute(STRING_CACHE_ENTRY_ATTRIBUTE, entry);
+        }
+        return false;
+    }
+    
+    /**
+     * Makes a GET either lead a flight, so that identical GETs arriving
+     * while it is at the proxy host wait for its response, or, if there
+     * already is one in flight, wait for that and send its response. With
+     * asyncProxy on, the wait suspends the client request instead of
+     * holding a container thread
+     * @param stringProxyURL The url of the request to the proxy host
+     * @param httpMethodProxyRequest The request to the proxy host, with its
+     *                                headers set
+     * @param httpServletRequest The client request
+     * @param httpServletResponse An object by which we can send the shared
+     *                             response back to the client
+     * @return true if the request has been answered with a shared response,
+     *          false if it has to go to the proxy host itself
+     * @throws IOException If the response can't be sent
+     */
+    private boolean joinFlight(String stringProxyURL, HttpMethod httpMethodProxyRequest,
+            HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse)
+                throws IOException {
+        if(this.requestCoalescer == null) {
+            return false;
+        }
+        Continuation continuation = null;
+        if(this.getAsyncProxy()) {
+            continuation = ContinuationSupport.getContinuation(httpServletRequest, null);
+            if(continuation.getObject() instanceof RequestCoalescer.Flight) {
+                // Back from waiting; if there's no response to share (the
+                // flight failed or the time ran out) go to the proxy host
+                RequestCoalescer.Flight flightWaited = (RequestCoalescer.Flight) continuation.getObject();
+                continuation.setObject(null);
+                return this.sendFlight(flightWaited, httpServletResponse);
+            }
+        }
+        String stringFlightKey = RequestCoalescer.key(stringProxyURL, httpMethodProxyRequest);
+        RequestCoalescer.Flight flight = this.requestCoalescer.takeOff(stringFlightKey);
+        if(flight != null) {
+            // We lead; sendProxyResponse lands the flight, and
+            // abortFlight makes sure it comes down one way or another
+            httpServletRequest.setAttribute(STRING_FLIGHT_ATTRIBUTE, flight);
+            return false;
+        }
+        flight = this.requestCoalescer.inFlight(stringFlightKey);
+        // If the flight has landed already go to the proxy host after all
+        if(flight == null) {
+            return false;
+        }
+        if(continuation != null) {
+            final Continuation continuationWaiting = continuation;
+            continuation.setObject(flight);
+            flight.whenLanded(new Runnable() {
+                public void run() {
+                    continuationWaiting.resume();
+                }
+            });
+            // With a Jetty NIO connector this throws and the request comes
+            // back through here when the flight lands or the time is up
+            continuation.suspend(this.getSocketTimeout());
+            continuation.setObject(null);
+        } else {
+            flight.await(this.getSocketTimeout());
+        }
+        return this.sendFlight(flight, httpServletResponse);
+    }
+    
+    /**
+     * Sends the response a flight landed with
+     * @param flight The flight
+     * @param httpServletResponse An object by which we can send the shared
+     *                             response back to the client
+     * @return true if the response has been sent, false if the flight has
+     *          no response to share
+     * @throws IOException If the response can't be sent
+     */
+    private boolean sendFlight(RequestCoalescer.Flight flight, HttpServletResponse httpServletResponse)
+            throws IOException {
+        if(flight.getBody() == null) {
+            return false;
+        }
+        httpServletResponse.setStatus(flight.getStatus());
+        for(Header header : flight.getHeaders()) {
+            httpServletResponse.setHeader(header.getName(), header.getValue());
+        }
+        byte[] byteArrayBody = flight.getBody();
+        httpServletResponse.setIntHeader(STRING_CONTENT_LENGTH_HEADER_NAME, byteArrayBody.length);
+        httpServletResponse.getOutputStream().write(byteArrayBody);
+        return true;
+    }
+    
+    /**
+     * Lets the GETs waiting on the flight a request is leading go to the
+     * proxy host themselves, unless it has already landed with a response
+     * for them
+     * @param httpServletRequest The client request
+     */
+    private void abortFlight(HttpServletRequest httpServletRequest) {
+        RequestCoalescer.Flight flight = (RequestCoalescer.Flight) httpServletRequest.getAttribute(STRING_FLIGHT_ATTRIBUTE);
+        if(flight != null) {
+            httpServletRequest.removeAttribute(STRING_FLIGHT_ATTRIBUTE);
+            flight.abort();
+        }
+    }
+    
+    /**
+     * Drops the cached responses for the url of a request that changes
+     * things on the proxy host
+     * @param httpMethodProxyRequest The request to the proxy host
+     */
+    private void invalidateCache(HttpMethod httpMethodProxyRequest) {
+        if(this.proxyCache != null) {
+            try {
+                this.proxyCache.invalidate(httpMethodProxyRequest.getURI().toString());
+            } catch (URIException uriException) {
+                // Nothing can have been cached under a bad url
+            }
+        }
+    }
+    
+    /**
+     * Makes a GET revalidate the stale cached response found by
+     * {@link #serveFromCache}, if there was one, instead of passing on the
+     * client's own conditional headers
+     * @param httpServletRequest The client request
+     * @param httpMethodProxyRequest The request to the proxy host
+     */
+    private void setCacheValidators(HttpServletRequest httpServletRequest, HttpMethod httpMethodProxyRequest) {
+        ProxyCache.Entry entry = (ProxyCache.Entry) httpServletRequest.getAttribute(STRING_CACHE_ENTRY_ATTRIBUTE);
+        if(entry != null) {
+            httpMethodProxyRequest.removeRequestHeader("If-Modified-Since");
+            httpMethodProxyRequest.setRequestHeader("If-None-Match", entry.etag);
+        }
+    }
+    
+    /**
+     * Sends a cached response to the client, or a 304 if the client's copy
+     * matches it
+     * @param stringCacheKey The cache key
+     * @param entry The cached response
+     * @param stringCacheStatus How the response was found, for the X-Cache header
+     * @param httpServletRequest The client request
+     * @param httpServletResponse An object by which we can send the cached
+     *                             response back to the client
+     * @return false if the response has disappeared from the cache, in
+     *          which case nothing has been sent
+     * @throws IOException If the response can't be sent
+     */
+    private boolean sendCachedResponse(String stringCacheKey, ProxyCache.Entry entry, String stringCacheStatus,
+            HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse)
+                throws IOException {
+        String stringIfNoneMatch = httpServletRequest.getHeader("If-None-Match");
+        boolean booleanNotModified = entry.etag != null && stringIfNoneMatch != null
+                && (stringIfNoneMatch.indexOf(entry.etag) != -1 || stringIfNoneMatch.trim().equals("*"));
+        InputStream inputStreamBody = null;
+        if(!booleanNotModified) {
+            try {
+                inputStreamBody = entry.openBody();
+            } catch (IOException ioException) {
+                // The body was on disk and got evicted
+                this.proxyCache.remove(stringCacheKey);
+                return false;
+            }
+        }
+        try {
+            httpServletResponse.setStatus(booleanNotModified ? HttpServletResponse.SC_NOT_MODIFIED : entry.status);
+            for(Header header : entry.headers) {
+                httpServletResponse.setHeader(header.getName(), header.getValue());
+            }
+            httpServletResponse.setHeader("Age", String.valueOf(entry.getAge()));
+            httpServletResponse.setHeader("X-Cache", stringCacheStatus);
+            if(booleanNotModified) {
+                httpServletResponse.setIntHeader(STRING_CONTENT_LENGTH_HEADER_NAME, 0);
+            } else {
+                httpServletResponse.setHeader(STRING_CONTENT_LENGTH_HEADER_NAME, String.valueOf(entry.length));
+                copyResponseBody(inputStreamBody, httpServletResponse.getOutputStream(), entry.length, null);
+            }
+        } finally {
+            if(inputStreamBody != null) {
+                inputStreamBody.close();
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Copies a proxied response body to the client a buffer at a time. The
+     * output is flushed whenever the proxy host has nothing more for us
+     * right now, so a slow or streaming response reaches the client as it
+     * arrives instead of when a buffer fills up.
+     * @param inputStream The response body from the proxy host
+     * @param outputStream The response stream to the client
+     * @param longContentLength The Content-Length of the body from the proxy
+     *                           host, or -1 if it didn't send one
+     * @param outputStreamCopy Another stream to write the body to, or null
+     * @return The number of bytes copied
+     * @throws IOException If either stream fails, or the proxy host sent
+     *                      less than its Content-Length
+     */
+    private static long copyResponseBody(InputStream inputStream, OutputStream outputStream, long longContentLength,
+            OutputStream outputStreamCopy) throws IOException {
+        byte[] byteArrayBuffer = borrowBuffer();
+        long longCopied = 0;
+        try {
+            // Stop at the Content-Length even if the proxy host sends more
+            while(longContentLength < 0 || longCopied < longContentLength) {
+                int intToRead = byteArrayBuffer.length;
+                if(longContentLength >= 0) {
+                    intToRead = (int) Math.min(intToRead, longContentLength - longCopied);
+                }
+                int intRead = inputStream.read(byteArrayBuffer, 0, intToRead);
+                if(intRead == -1) {
+                    break;
+                }
+                outputStream.write(byteArrayBuffer, 0, intRead);
+                if(outputStreamCopy != null) {
+                    outputStreamCopy.write(byteArrayBuffer, 0, intRead);
+                }
+                longCopied += intRead;
+                if(inputStream.available() == 0) {
+                    outputStream.flush();
+                }
+            }
+        } finally {
+            returnBuffer(byteArrayBuffer);
+        }
+        if(longContentLength >= 0 && longCopied < longContentLength) {
+            // We already promised the client more bytes than this, so all we
+            // can do is fail and let the connection be dropped
+            throw new IOException("Proxy host sent " + longCopied + " of "
+                    + longContentLength + " bytes");
         }
+        outputStream.flush();
+        return longCopied;
+    }
+    
+    /**
+     * Gets a copy buffer from the pool, or a new one if the pool is empty
+     * @return The buffer
+     */
+    private static byte[] borrowBuffer() {
+        byte[] byteArrayBuffer = queueBuffers.poll();
+        return (byteArrayBuffer != null ? byteArrayBuffer : new byte[INT_BUFFER_SIZE]);
+    }
+    
+    /**
+     * Puts a copy buffer back in the pool, unless the pool is full
+     * @param byteArrayBuffer The buffer
+     */
+    private static void returnBuffer(byte[] byteArrayBuffer) {
+        queueBuffers.offer(byteArrayBuffer);
+    }
+    
+    /**
+     * Checks whether a response header is a hop-by-hop header
+     * @param stringHeaderName The header name
+     * @return true if the header must not be passed on to the client
+     */
+    private static boolean isHopByHopHeader(String stringHeaderName) {
+        for(String stringHopByHopHeader : STRING_ARRAY_HOP_BY_HOP_HEADERS) {
+            if(stringHopByHopHeader.equalsIgnoreCase(stringHeaderName)) {
+                return true;
+            }
+        }
+        return false;
     }
     
     public String getServletInfo() {
@@ -568,10 +1702,136 @@ public class ProxyServlet extends HttpServlet {
     private void setProxyQuery(String stringProxyQueryNew) {
         this.stringProxyQuery = stringProxyQueryNew;
     }
+    private String getProxyBackends() {
+        return this.stringProxyBackends;
+    }
+    private void setProxyBackends(String stringProxyBackendsNew) {
+        this.stringProxyBackends = stringProxyBackendsNew;
+    }
+    private String getLoadBalancing() {
+        return this.stringLoadBalancing;
+    }
+    private void setLoadBalancing(String stringLoadBalancingNew) {
+        this.stringLoadBalancing = stringLoadBalancingNew;
+    }
+    private int getMaxFails() {
+        return this.intMaxFails;
+    }
+    private void setMaxFails(int intMaxFailsNew) {
+        this.intMaxFails = intMaxFailsNew;
+    }
+    private int getEjectTime() {
+        return this.intEjectTime;
+    }
+    private void setEjectTime(int intEjectTimeNew) {
+        this.intEjectTime = intEjectTimeNew;
+    }
+    private String getHealthCheckPath() {
+        return this.stringHealthCheckPath;
+    }
+    private void setHealthCheckPath(String stringHealthCheckPathNew) {
+        this.stringHealthCheckPath = stringHealthCheckPathNew;
+    }
+    private int getHealthCheckInterval() {
+        return this.intHealthCheckInterval;
+    }
+    private void setHealthCheckInterval(int intHealthCheckIntervalNew) {
+        this.intHealthCheckInterval = intHealthCheckIntervalNew;
+    }
     private int getMaxFileUploadSize() {
         return this.intMaxFileUploadSize;
     }
     private void setMaxFileUploadSize(int intMaxFileUploadSizeNew) {
         this.intMaxFileUploadSize = intMaxFileUploadSizeNew;
     }
+    private boolean getCoalesceRequests() {
+        return this.booleanCoalesceRequests;
+    }
+    private void setCoalesceRequests(boolean booleanCoalesceRequestsNew) {
+        this.booleanCoalesceRequests = booleanCoalesceRequestsNew;
+    }
+    private int getCoalesceMaxBytes() {
+        return this.intCoalesceMaxBytes;
+    }
+    private void setCoalesceMaxBytes(int intCoalesceMaxBytesNew) {
+        this.intCoalesceMaxBytes = intCoalesceMaxBytesNew;
+    }
+    private long getCacheMemoryBytes() {
+        return this.longCacheMemoryBytes;
+    }
+    private void setCacheMemoryBytes(long longCacheMemoryBytesNew) {
+        this.longCacheMemoryBytes = longCacheMemoryBytesNew;
+    }
+    private String getCacheDirectory() {
+        return this.stringCacheDirectory;
+    }
+    private void setCacheDirectory(String stringCacheDirectoryNew) {
+        this.stringCacheDirectory = stringCacheDirectoryNew;
+    }
+    private long getCacheDiskBytes() {
+        return this.longCacheDiskBytes;
+    }
+    private void setCacheDiskBytes(long longCacheDiskBytesNew) {
+        this.longCacheDiskBytes = longCacheDiskBytesNew;
+    }
+    private int getMaxConcurrentRequests() {
+        return this.intMaxConcurrentRequests;
+    }
+    private void setMaxConcurrentRequests(int intMaxConcurrentRequestsNew) {
+        this.intMaxConcurrentRequests = intMaxConcurrentRequestsNew;
+    }
+    private int getMaxQueuedRequests() {
+        return this.intMaxQueuedRequests;
+    }
+    private void setMaxQueuedRequests(int intMaxQueuedRequestsNew) {
+        this.intMaxQueuedRequests = intMaxQueuedRequestsNew;
+    }
+    private boolean getAsyncProxy() {
+        return this.booleanAsyncProxy;
+    }
+    private void setAsyncProxy(boolean booleanAsyncProxyNew) {
+        this.booleanAsyncProxy = booleanAsyncProxyNew;
+    }
+    private int getAsyncTimeout() {
+        return this.intAsyncTimeout;
+    }
+    private void setAsyncTimeout(int intAsyncTimeoutNew) {
+        this.intAsyncTimeout = intAsyncTimeoutNew;
+    }
+    private boolean getStreamMultipart() {
+        return this.booleanStreamMultipart;
+    }
+    private void setStreamMultipart(boolean booleanStreamMultipartNew) {
+        this.booleanStreamMultipart = booleanStreamMultipartNew;
+    }
+    private int getMaxConnectionsPerHost() {
+        return this.intMaxConnectionsPerHost;
+    }
+    private void setMaxConnectionsPerHost(int intMaxConnectionsPerHostNew) {
+        this.intMaxConnectionsPerHost = intMaxConnectionsPerHostNew;
+    }
+    private int getMaxTotalConnections() {
+        return this.intMaxTotalConnections;
+    }
+    private void setMaxTotalConnections(int intMaxTotalConnectionsNew) {
+        this.intMaxTotalConnections = intMaxTotalConnectionsNew;
+    }
+    private int getConnectTimeout() {
+        return this.intConnectTimeout;
+    }
+    private void setConnectTimeout(int intConnectTimeoutNew) {
+        this.intConnectTimeout = intConnectTimeoutNew;
+    }
+    private int getSocketTimeout() {
+        return this.intSocketTimeout;
+    }
+    private void setSocketTimeout(int intSocketTimeoutNew) {
+        this.intSocketTimeout = intSocketTimeoutNew;
+    }
+    private int getIdleConnectionTimeout() {
+        return this.intIdleConnectionTimeout;
+    }
+    private void setIdleConnectionTimeout(int intIdleConnectionTimeoutNew) {
+        this.intIdleConnectionTimeout = intIdleConnectionTimeoutNew;
+    }
 }
@@ -0,0 +1,199 @@
+package com.thinkminimo.golf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+
+/**
+ * Single-flight coalescing of identical backend requests. The first
+ * request for a key takes off and goes to the backend; requests for the
+ * same key that arrive while it is in flight wait for it and get a copy
+ * of its response instead of going to the backend themselves.
+ *
+ * Only responses up to a size limit are shared. When the response is too
+ * big, or the request fails, the waiting requests are let go to make
+ * their own.
+ */
+public class RequestCoalescer {
+
+  /** request headers that can change the response, and so go in the key */
+  private static final String[] VARY_HEADERS = {
+    "Accept", "Accept-Encoding", "Accept-Language", "Authorization",
+    "Cookie", "If-Modified-Since", "If-None-Match", "If-Range", "Range"
+  };
+
+  /**
+   * A request in flight. The leader writes the response body to it as it
+   * goes, then lands it (or aborts it).
+   */
+  public class Flight extends OutputStream {
+    private final String          mKey;
+    private final CountDownLatch  mLanded  = new CountDownLatch(1);
+    private ByteArrayOutputStream mBuffer  = new ByteArrayOutputStream();
+    private volatile int          mStatus  = -1;
+    private volatile Header[]     mHeaders = null;
+    private volatile byte[]       mBody    = null;
+    private List<Runnable>        mOnLand  = new ArrayList<Runnable>();
+
+    Flight(String key) {
+      mKey = key;
+    }
+
+    public void write(int b) {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) {
+      if (mBuffer == null)
+        return;
+
+      if (mBuffer.size() + len > mMaxBytes) {
+        mBuffer = null;
+        return;
+      }
+
+      mBuffer.write(b, off, len);
+    }
+
+    /**
+     * Share the response with the waiting requests. Call this once the
+     * whole body has been written.
+     *
+     * @param       status      the response status
+     * @param       headers     the response headers to pass on
+     */
+    public synchronized void land(int status, Header[] headers) {
+      if (mLanded.getCount() == 0)
+        return;
+
+      if (mBuffer != null) {
+        mStatus   = status;
+        mHeaders  = headers;
+        mBody     = mBuffer.toByteArray();
+      }
+
+      mBuffer = null;
+      finish();
+    }
+
+    /**
+     * Let the waiting requests go without a response. Does nothing if the
+     * flight has already landed.
+     */
+    public synchronized void abort() {
+      if (mLanded.getCount() == 0)
+        return;
+
+      mBuffer = null;
+      finish();
+    }
+
+    /**
+     * Wait for the flight to land.
+     *
+     * @param       timeout     how long to wait (msec)
+     * @return                  true if there is a response to use
+     */
+    public boolean await(long timeout) {
+      try {
+        mLanded.await(timeout, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return mBody != null;
+    }
+
+    /**
+     * Run something when the flight lands or is aborted, so a request can
+     * wait without holding a thread. Runs it right away if that has
+     * already happened.
+     *
+     * @param       r           what to run
+     */
+    public void whenLanded(Runnable r) {
+      synchronized (this) {
+        if (mOnLand != null) {
+          mOnLand.add(r);
+          return;
+        }
+      }
+      r.run();
+    }
+
+    public int      getStatus()   { return mStatus;   }
+    public Header[] getHeaders()  { return mHeaders;  }
+    public byte[]   getBody()     { return mBody;     }
+
+    private void finish() {
+      mFlights.remove(mKey, this);
+      mLanded.countDown();
+
+      for (Runnable r : mOnLand)
+        r.run();
+      mOnLand = null;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Flight> mFlights =
+    new ConcurrentHashMap<String, Flight>();
+
+  private final int mMaxBytes;
+
+  /**
+   * Constructor.
+   *
+   * @param       maxBytes    the biggest response body that is shared
+   */
+  public RequestCoalescer(int maxBytes) {
+    mMaxBytes = maxBytes;
+  }
+
+  /**
+   * Make the key for a request: the url and the request headers that can
+   * change the response. Other headers (User-Agent, Referer, etc.) are
+   * left out so that requests from different browsers still share.
+   *
+   * @param       url         the url of the request
+   * @param       method      the request, with its headers set
+   * @return                  the key
+   */
+  public static String key(String url, HttpMethod method) {
+    StringBuilder key = new StringBuilder(url);
+
+    for (String name : VARY_HEADERS) {
+      Header header = method.getRequestHeader(name);
+      key.append('\n').append(header == null ? "" : header.getValue());
+    }
+
+    return key.toString();
+  }
+
+  /**
+   * Start a flight for a key, unless one is already in the air.
+   *
+   * @param       key         the request key
+   * @return                  the new flight, which the caller must land or
+   *                          abort, or null if there already is one
+   */
+  public Flight takeOff(String key) {
+    Flight flight = new Flight(key);
+    return (mFlights.putIfAbsent(key, flight) == null ? flight : null);
+  }
+
+  /**
+   * Get the flight in the air for a key.
+   *
+   * @param       key         the request key
+   * @return                  the flight, or null if there isn't one
+   */
+  public Flight inFlight(String key) {
+    return mFlights.get(key);
+  }
+}
@@ -0,0 +1,165 @@
+package com.thinkminimo.golf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * In-memory cache of static resources, sitting in front of GolfResource.
+ * Each entry holds the resource bytes, a gzipped copy when that's worth
+ * having, and the ETag and length that go with them, all computed once.
+ *
+ * Files too big to keep in memory get an entry without the bytes, to be
+ * streamed from the file when they're served.
+ *
+ * In devmode entries are reloaded when the underlying file changes. In
+ * production they are never invalidated, except for the big files, which
+ * are always checked since their bytes come off the disk.
+ */
+public class ResourceCache {
+
+  /** resources bigger than this are served from the file */
+  public static final int MAX_CACHED_SIZE = 1024 * 1024;
+
+  /**
+   * A cached resource. The byte arrays must not be modified. For big files
+   * the bytes are null and the body has to be read from the file.
+   */
+  public static class Entry {
+    public final String   path;
+    public final String   mimeType;
+    public final byte[]   bytes;
+    public final byte[]   gzipped;
+    public final String   etag;
+    public final String   gzippedEtag;
+    public final long     lastModified;
+    public final long     length;
+    public final File     file;
+
+    Entry(String path, GolfResource res, int gzipLevel, int gzipMinSize)
+        throws IOException {
+      this.path         = path;
+      this.mimeType     = res.getMimeType();
+      this.bytes        = res.toByteArray();
+      this.file         = res.getFile();
+      this.lastModified = res.getLastModified();
+      this.length       = bytes.length;
+      this.gzipped      = (bytes.length >= gzipMinSize &&
+                           ContentEncoding.isCompressible(mimeType))
+                            ? gzip(bytes, gzipLevel) : null;
+
+      // the encodings are different representations, so different etags
+      String hash       = DigestUtils.md5Hex(bytes);
+      this.etag         = "\"" + hash + "\"";
+      this.gzippedEtag  = "\"" + hash + "-gz\"";
+    }
+
+    Entry(String path, File file) {
+      this.path         = path;
+      this.mimeType     = GolfResource.MimeMapping.lookup(path);
+      this.bytes        = null;
+      this.gzipped      = null;
+      this.file         = file;
+      this.lastModified = file.lastModified();
+      this.length       = file.length();
+
+      // hashing the whole file would mean reading it, so go by the stat
+      this.etag         = "\"" + Long.toHexString(lastModified) + "-" +
+                          Long.toHexString(length) + "\"";
+      this.gzippedEtag  = null;
+    }
+
+    /**
+     * @return whether the file this entry was loaded from is unchanged
+     */
+    public boolean isFresh() {
+      return file == null ||
+        (file.lastModified() == lastModified && file.length() == length);
+    }
+  }
+
+  private final ConcurrentHashMap<String, Entry> mEntries =
+    new ConcurrentHashMap<String, Entry>();
+
+  private final ServletContext  mContext;
+  private final boolean         mCheckModified;
+  private final int             mGzipLevel;
+  private final int             mGzipMinSize;
+
+  /**
+   * Constructor.
+   *
+   * @param       context         the servlet context to load resources from
+   * @param       checkModified   whether to reload entries whose file has
+   *                              changed (devmode)
+   * @param       gzipLevel       the compression level for gzipped variants
+   * @param       gzipMinSize     resources smaller than this (bytes) don't
+   *                              get a gzipped variant
+   */
+  public ResourceCache(ServletContext context, boolean checkModified,
+      int gzipLevel, int gzipMinSize) {
+    mContext        = context;
+    mCheckModified  = checkModified;
+    mGzipLevel      = gzipLevel;
+    mGzipMinSize    = gzipMinSize;
+  }
+
+  /**
+   * Get a resource, loading it if it's not cached (or stale in devmode).
+   *
+   * @param       path        the resource path
+   * @return                  the resource
+   */
+  public Entry get(String path) throws FileNotFoundException, IOException {
+    Entry entry = mEntries.get(path);
+
+    if (entry != null && 
+        ((!mCheckModified && entry.bytes != null) || entry.isFresh()))
+      return entry;
+
+    File file = GolfResource.findFile(mContext, path);
+
+    if (file != null && file.length() > MAX_CACHED_SIZE)
+      entry = new Entry(path, file);
+    else
+      entry = new Entry(path, new GolfResource(mContext, path),
+          mGzipLevel, mGzipMinSize);
+
+    if (entry.bytes == null || entry.length <= MAX_CACHED_SIZE)
+      mEntries.put(path, entry);
+    else
+      mEntries.remove(path);
+
+    return entry;
+  }
+
+  /**
+   * Drop every cached resource.
+   */
+  public void clear() {
+    mEntries.clear();
+  }
+
+  /**
+   * Gzip some bytes.
+   *
+   * @return the compressed bytes, or null if compression didn't help
+   */
+  private static byte[] gzip(byte[] bytes, int level) throws IOException {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream(bytes.length / 2);
+    OutputStream          out =
+      ContentEncoding.wrap(buf, ContentEncoding.GZIP, level);
+
+    out.write(bytes);
+    out.close();
+
+    return (buf.size() < bytes.length ? buf.toByteArray() : null);
+  }
+}
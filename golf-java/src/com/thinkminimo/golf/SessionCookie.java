@@ -0,0 +1,121 @@
+package com.thinkminimo.golf;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Signs and checks cookie values with HMAC-SHA256, so that state can be
+ * kept on the client without the client being able to change it. Every
+ * server that shares the secret accepts the cookies any of them wrote.
+ *
+ * A signed value is the payload, the time it was signed, and the
+ * signature, separated by dots. Values older than the max age are
+ * rejected, so that an old cookie can't be replayed forever.
+ */
+public class SessionCookie {
+
+  private static final String ALGORITHM = "HmacSHA256";
+
+  private final SecretKeySpec   mKey;
+  private final long            mMaxAge;
+  private final ThreadLocal<Mac> mMac = new ThreadLocal<Mac>() {
+    protected Mac initialValue() {
+      try {
+        Mac mac = Mac.getInstance(ALGORITHM);
+        mac.init(mKey);
+        return mac;
+      } catch (GeneralSecurityException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  };
+
+  /**
+   * Constructor.
+   *
+   * @param       secret      the key to sign with, or null or empty for a
+   *                          random one (which only this server knows)
+   * @param       maxAge      how long a signed value is good for (seconds)
+   */
+  public SessionCookie(String secret, long maxAge) {
+    byte[] key;
+
+    if (secret == null || secret.length() == 0) {
+      key = new byte[32];
+      new SecureRandom().nextBytes(key);
+    } else {
+      key = utf8(secret);
+    }
+
+    mKey    = new SecretKeySpec(key, ALGORITHM);
+    mMaxAge = maxAge;
+  }
+
+  /**
+   * Sign a value.
+   *
+   * @param       payload     the value, which must be safe to put in a
+   *                          cookie as it is
+   * @return                  the signed value
+   */
+  public String sign(String payload) {
+    String signed = payload + "." +
+      Long.toString(System.currentTimeMillis() / 1000, 36);
+
+    return signed + "." + Base64.encodeBase64URLSafeString(mac(signed));
+  }
+
+  /**
+   * Check a signed value.
+   *
+   * @param       value       the value from sign(), or null
+   * @return                  the payload, or null if the value is missing,
+   *                          tampered with or too old
+   */
+  public String verify(String value) {
+    if (value == null)
+      return null;
+
+    int sig = value.lastIndexOf('.');
+    int ts  = (sig > 0 ? value.lastIndexOf('.', sig - 1) : -1);
+
+    if (ts < 0)
+      return null;
+
+    String signed = value.substring(0, sig);
+
+    if (!MessageDigest.isEqual(mac(signed),
+          Base64.decodeBase64(value.substring(sig + 1))))
+      return null;
+
+    try {
+      long age = System.currentTimeMillis() / 1000 -
+        Long.parseLong(value.substring(ts + 1, sig), 36);
+      if (age < 0 || age > mMaxAge)
+        return null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+
+    return value.substring(0, ts);
+  }
+
+  private byte[] mac(String s) {
+    return mMac.get().doFinal(utf8(s));
+  }
+
+  private static byte[] utf8(String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package com.thinkminimo.golf;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded cache of rendered proxymode pages. A page rendered by a
+ * freshly booted jsvm for a given url is the same for every session, so
+ * the html can be handed to the next session without running a jsvm.
+ *
+ * Entries expire after a fixed time to live, and the least recently used
+ * entries are dropped when the total size goes over the byte limit.
+ */
+public class SnapshotCache {
+
+  private static class Snapshot {
+    public final String html;
+    public final long   bytes;
+    public final long   created;
+
+    Snapshot(String html, long created) {
+      this.html     = html;
+      this.bytes    = 2L * html.length(); // java chars are two bytes
+      this.created  = created;
+    }
+  }
+
+  private final LinkedHashMap<String, Snapshot> mSnapshots =
+    new LinkedHashMap<String, Snapshot>(16, 0.75f, true);
+
+  private final long        mTtl;
+  private final long        mMaxBytes;
+  private long              mBytes  = 0;
+  private final AtomicLong  mHits   = new AtomicLong();
+  private final AtomicLong  mMisses = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param       ttl         how long a snapshot stays valid (msec)
+   * @param       maxBytes    upper bound on the memory used by snapshots
+   */
+  public SnapshotCache(long ttl, long maxBytes) {
+    mTtl      = ttl;
+    mMaxBytes = maxBytes;
+  }
+
+  /**
+   * Build a cache key.
+   *
+   * @param       servletUrl  the servlet url
+   * @param       urlHash     the app path
+   * @param       forcebot    whether the page was rendered for a bot
+   * @param       cookies     whether the session id comes in a cookie;
+   *                          if not, the links in the page carry it
+   * @param       version     the app version
+   * @return                  the key
+   */
+  public static String key(String servletUrl, String urlHash,
+      boolean forcebot, boolean cookies, String version) {
+    return version + "|" + forcebot + "|" + cookies + "|" + servletUrl +
+      "|" + urlHash;
+  }
+
+  /**
+   * Look up a snapshot.
+   *
+   * @param       key         the cache key
+   * @return                  the rendered html, or null on a miss
+   */
+  public synchronized String get(String key) {
+    Snapshot snap = mSnapshots.get(key);
+
+    if (snap != null && System.currentTimeMillis() - snap.created > mTtl) {
+      mSnapshots.remove(key);
+      mBytes -= snap.bytes;
+      snap = null;
+    }
+
+    if (snap == null) {
+      mMisses.incrementAndGet();
+      return null;
+    }
+
+    mHits.incrementAndGet();
+    return snap.html;
+  }
+
+  /**
+   * Store a snapshot, evicting old ones as necessary to stay under the
+   * byte limit. Snapshots bigger than the whole limit are not stored.
+   *
+   * @param       key         the cache key
+   * @param       html        the rendered html
+   */
+  public synchronized void put(String key, String html) {
+    Snapshot snap = new Snapshot(html, System.currentTimeMillis());
+
+    if (snap.bytes > mMaxBytes)
+      return;
+
+    Snapshot old = mSnapshots.put(key, snap);
+    if (old != null)
+      mBytes -= old.bytes;
+    mBytes += snap.bytes;
+
+    Iterator<Map.Entry<String, Snapshot>> i = mSnapshots.entrySet().iterator();
+    while (mBytes > mMaxBytes && i.hasNext()) {
+      Snapshot lru = i.next().getValue();
+      i.remove();
+      mBytes -= lru.bytes;
+    }
+  }
+
+  /**
+   * Drop every snapshot.
+   */
+  public synchronized void clear() {
+    mSnapshots.clear();
+    mBytes = 0;
+  }
+
+  public long getHits()                 { return mHits.get();   }
+  public long getMisses()               { return mMisses.get(); }
+  public synchronized long getBytes()   { return mBytes;        }
+}
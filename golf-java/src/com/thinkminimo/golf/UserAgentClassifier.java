@@ -0,0 +1,112 @@
+package com.thinkminimo.golf;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Decides whether a user agent is a bot, should be forced into proxy mode,
+ * or should be forced into client mode, from the patterns in forcebot.txt,
+ * forceproxy.txt and forceclient.txt. A user agent is in a list if the
+ * whole string matches one of its patterns.
+ *
+ * Each list is compiled into a single pattern, and the answers for recent
+ * user agents are remembered, since most requests come from a handful of
+ * browsers. Numbered backreferences in the patterns aren't supported,
+ * because the groups are renumbered when the lists are combined.
+ */
+public class UserAgentClassifier {
+
+  public static final int BOT     = 1;
+  public static final int PROXY   = 2;
+  public static final int CLIENT  = 4;
+
+  // longer user agents aren't remembered, so junk can't fill the cache
+  private static final int MAX_UA_LENGTH = 512;
+
+  private final Pattern mBot;
+  private final Pattern mProxy;
+  private final Pattern mClient;
+  private final Map<String, Integer> mCache;
+
+  /**
+   * Constructor.
+   *
+   * @param       bot         the forcebot patterns
+   * @param       proxy       the forceproxy patterns
+   * @param       client      the forceclient patterns
+   * @param       cacheSize   how many user agents to remember
+   */
+  public UserAgentClassifier(List<String> bot, List<String> proxy,
+      List<String> client, final int cacheSize) {
+    mBot    = combine(bot);
+    mProxy  = combine(proxy);
+    mClient = combine(client);
+    mCache  = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, Integer> e) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  /**
+   * Classify a user agent.
+   *
+   * @param       ua          the user agent string (null is taken as
+   *                          empty)
+   * @return                  the lists it's in: BOT, PROXY and CLIENT or'd
+   *                          together
+   */
+  public int classify(String ua) {
+    if (ua == null)
+      ua = "";
+
+    Integer cached;
+    synchronized (mCache) {
+      cached = mCache.get(ua);
+    }
+    if (cached != null)
+      return cached.intValue();
+
+    int result = (matches(mBot,    ua) ? BOT    : 0)
+               | (matches(mProxy,  ua) ? PROXY  : 0)
+               | (matches(mClient, ua) ? CLIENT : 0);
+
+    if (ua.length() <= MAX_UA_LENGTH) {
+      synchronized (mCache) {
+        mCache.put(ua, Integer.valueOf(result));
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Combine patterns into one that matches whatever any of them match.
+   *
+   * @param       pats        the patterns
+   * @return                  the combined pattern, or null if there are
+   *                          no patterns
+   */
+  private static Pattern combine(List<String> pats) {
+    if (pats.isEmpty())
+      return null;
+
+    StringBuilder re = new StringBuilder();
+
+    for (String p : pats) {
+      // compile alone first, so a bad pattern is reported by itself
+      Pattern.compile(p);
+      if (re.length() > 0)
+        re.append('|');
+      re.append("(?:").append(p).append(')');
+    }
+
+    return Pattern.compile(re.toString());
+  }
+
+  private static boolean matches(Pattern pat, String ua) {
+    return pat != null && pat.matcher(ua).matches();
+  }
+}